@@ -0,0 +1,226 @@
+/*
+ * Match the lines of a file without decoding the ones that cannot match
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.nio.charset.*;
+
+
+/**
+ * Splits bytes into lines and matches them, like PatternMatcher.performRegex
+ * and SpanFinder.performSearch but on the bytes themselves
+ * Line ends are found with a ByteScanner. A whole line can only match if its
+ * first byte can start the pattern, and a line can only hold a match if
+ * one of its bytes can, so every other line is passed over without being
+ * decoded or read by the DFA. ASCII lines are run through the DFA straight
+ * from the bytes, other lines are decoded first. Only charsets where every
+ * ASCII byte stands for itself are supported
+ */
+final class ByteLineScanner {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CompiledPattern pattern;
+    private final SpanFinder finder;
+    private final Charset charset;
+    private final ByteScanner scanner;
+    private final ByteSet firstBytes;
+    private final boolean latin1;
+
+    /**
+     * Constructor for ByteLineScanner
+     * @param pattern the pattern whole lines are matched with
+     * @param finder used to print every match inside each line, or null to only match whole lines
+     * @param charset the charset of the bytes, it must be one that supports() accepts
+     */
+    public ByteLineScanner(CompiledPattern pattern, SpanFinder finder, Charset charset) {
+        this.pattern = pattern;
+        this.finder = finder;
+        this.charset = charset;
+        this.scanner = ByteScanner.get();
+        CompiledPattern first = finder == null ? pattern : finder.getForward();
+        this.firstBytes = first.getFirstBytes();
+        this.latin1 = charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @param charset a charset
+     * @return true if every ASCII byte stands for itself and a line end byte is never part of another character
+     */
+    public static boolean supports(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8) || charset.equals(StandardCharsets.US_ASCII)
+                || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Matches every line, lines end at '\n', '\r' or "\r\n" like BufferedReader.readLine
+     * @param in the bytes
+     * @param out where the matches are printed
+     * @param prefix printed before every match, such as the file name
+     * @throws IOException if the stream fails
+     */
+    public void scan(InputStream in, PrintStream out, String prefix) throws IOException {
+        long start = GraphexStats.start();
+        long bytes = 0;
+        long lines = 0;
+        long matchCount = 0;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int begin = 0;
+        int end = 0;
+        int searched = 0;
+        boolean skipNewline = false;
+        boolean finished = false;
+        ByteChars view = new ByteChars(buffer);
+
+        while (true) {
+            // Find the end of the next line, reading more when there is none in the buffer
+            int lineEnd = this.scanner.lineEnd(buffer, Math.max(begin, searched), end);
+            if (lineEnd == -1 && !finished) {
+                // What has been searched already is not searched again
+                searched = end;
+                if (begin > 0) {
+                    System.arraycopy(buffer, begin, buffer, 0, end - begin);
+                    end -= begin;
+                    searched -= begin;
+                    begin = 0;
+                }
+                if (end == buffer.length) {
+                    buffer = java.util.Arrays.copyOf(buffer, buffer.length * 2);
+                    view = new ByteChars(buffer);
+                }
+
+                int n = in.read(buffer, end, buffer.length - end);
+                if (n < 0) {
+                    finished = true;
+                }
+                else {
+                    end += n;
+                }
+                continue;
+            }
+
+            // A '\n' straight after a '\r' is part of the same line end
+            if (skipNewline && begin < end) {
+                skipNewline = false;
+                if (buffer[begin] == '\n') {
+                    begin++;
+                    continue;
+                }
+            }
+
+            if (lineEnd == -1) {
+                // The last line only counts if it has something in it
+                if (begin == end) {
+                    break;
+                }
+                lineEnd = end;
+            }
+
+            int length = lineEnd - begin;
+            bytes += length + 1;
+            lines++;
+
+            if (this.finder != null) {
+                matchCount += search(buffer, begin, lineEnd, lines, out, prefix);
+            }
+            else if (length > 0 && this.firstBytes.contains(buffer[begin]) && matches(buffer, view, begin, lineEnd)) {
+                out.println(prefix + "String matched " + new String(buffer, begin, length, this.charset));
+                matchCount++;
+            }
+            else if (this.pattern.isAccepting(this.pattern.getStart())) {
+                out.println(prefix + "Empty String matched");
+            }
+
+            if (lineEnd == end) {
+                break;
+            }
+            skipNewline = buffer[lineEnd] == '\r';
+            begin = lineEnd + 1;
+        }
+
+        GraphexStats.scanned(start, bytes, lines, matchCount);
+    }
+
+    /**
+     * Checks if the whole of a line matches
+     * @param buffer the bytes
+     * @param view the bytes as characters
+     * @param from the first byte of the line
+     * @param to one past the last byte of the line
+     * @return true if it matches
+     */
+    private boolean matches(byte[] buffer, ByteChars view, int from, int to) {
+        if (!this.latin1 && this.scanner.nonAscii(buffer, from, to) != -1) {
+            return this.pattern.matcher().matches(new String(buffer, from, to - from, this.charset));
+        }
+
+        JitMatcher jit = this.pattern.getJit();
+        if (jit != null) {
+            return jit.matches(view, from, to);
+        }
+
+        CompiledPattern p = this.pattern;
+        int state = p.getStart();
+        for (int i = from; i < to && state != CompiledPattern.DEAD_STATE; i++) {
+            state = p.next(state, (char) (buffer[i] & 0xff));
+        }
+        return p.isAccepting(state);
+    }
+
+    /**
+     * Prints every match in a line if one of its bytes can start a match
+     * @param buffer the bytes
+     * @param from the first byte of the line
+     * @param to one past the last byte of the line
+     * @param lineNumber the number of the line from 1
+     * @param out where the matches are printed
+     * @param prefix printed before every match
+     * @return the number of matches printed
+     */
+    private int search(byte[] buffer, int from, int to, long lineNumber, PrintStream out, String prefix) {
+        int first = this.scanner.indexOfAny(buffer, from, to, this.firstBytes);
+        if (first == -1) {
+            return 0;
+        }
+
+        // Before the first byte that is not ASCII bytes and characters line up,
+        // so the search can start at the first byte that can start a match
+        int ascii = this.latin1 ? -1 : this.scanner.nonAscii(buffer, from, first);
+        String line = new String(buffer, from, to - from, this.charset);
+        return this.finder.searchLine(line, ascii == -1 ? first - from : 0, lineNumber, out, prefix);
+    }
+
+    /**
+     * A byte array seen as characters, each byte is one character
+     */
+    private static final class ByteChars implements CharSequence {
+        private final byte[] bytes;
+
+        ByteChars(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) (this.bytes[index] & 0xff);
+        }
+
+        @Override
+        public int length() {
+            return this.bytes.length;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(this.bytes, start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(this.bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
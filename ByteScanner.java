@@ -0,0 +1,122 @@
+/*
+ * Find line ends and interesting bytes in a buffer
+ */
+
+
+package graphex;
+
+
+/**
+ * Searches byte arrays for the bytes the line scanner cares about
+ * The vector version, built from vector/VectorByteScanner.java, looks at 32
+ * or 64 bytes at a time and is used when the JVM is started with
+ * --add-modules jdk.incubator.vector, otherwise the scalar version is used
+ */
+interface ByteScanner {
+    /**
+     * Finds the end of a line
+     * @param bytes the bytes
+     * @param from the first byte searched
+     * @param to one past the last byte searched
+     * @return the index of the first '\n' or '\r' or -1 if there is none
+     */
+    int lineEnd(byte[] bytes, int from, int to);
+
+    /**
+     * Finds the first byte in a set
+     * @param bytes the bytes
+     * @param from the first byte searched
+     * @param to one past the last byte searched
+     * @param set the bytes looked for
+     * @return the index of the first byte in the set or -1 if there is none
+     */
+    int indexOfAny(byte[] bytes, int from, int to, ByteSet set);
+
+    /**
+     * Finds the first byte that is not ASCII
+     * @param bytes the bytes
+     * @param from the first byte searched
+     * @param to one past the last byte searched
+     * @return the index of the first byte of 0x80 or more or -1 if there is none
+     */
+    int nonAscii(byte[] bytes, int from, int to);
+
+    /**
+     * @return the vector scanner if the JVM can run it, otherwise the scalar one
+     */
+    static ByteScanner get() {
+        return ByteScanners.INSTANCE;
+    }
+}
+
+
+/**
+ * Chooses the scanner once
+ */
+final class ByteScanners {
+    static final ByteScanner INSTANCE = load();
+
+    /**
+     * Constructor for ByteScanners, it only has static members
+     */
+    private ByteScanners() {
+    }
+
+    /**
+     * The vector scanner is found by name so this compiles and runs without
+     * the incubator module
+     * @return the scanner
+     */
+    private static ByteScanner load() {
+        if (Boolean.parseBoolean(System.getProperty("graphex.vector", "true"))) {
+            try {
+                return (ByteScanner) Class.forName("graphex.VectorByteScanner").getDeclaredConstructor().newInstance();
+            }
+            catch (ReflectiveOperationException | LinkageError e) {
+                // Fall back to the scalar scanner below
+            }
+        }
+        return new ScalarByteScanner();
+    }
+}
+
+
+/**
+ * Looks at one byte at a time
+ */
+final class ScalarByteScanner implements ByteScanner {
+    @Override
+    public int lineEnd(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int indexOfAny(byte[] bytes, int from, int to, ByteSet set) {
+        for (int i = from; i < to; i++) {
+            if (set.contains(bytes[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int nonAscii(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * A set of bytes a line scanner looks for
+ */
+
+
+package graphex;
+
+
+/**
+ * A set of byte values
+ * It also holds the two tables for the vector search: a byte is looked up
+ * by its low four bits in one and its high four bits in the other, and can
+ * only be in the set if the two entries share a bit. The high four bits are
+ * split into eight buckets so a match can be wrong and is checked again.
+ * The vectors a ByteScanner makes from the tables are kept with the set, so
+ * they are only made once for each pattern
+ */
+final class ByteSet {
+    private final boolean[] members = new boolean[256];
+    private final byte[] lowTable = new byte[16];
+    private final byte[] highTable = new byte[16];
+    private final byte[] values;
+    private volatile Object prepared;
+
+    /**
+     * Constructor for ByteSet
+     * @param members which of the 256 byte values are in the set
+     */
+    public ByteSet(boolean[] members) {
+        int count = 0;
+        for (int b = 0; b < 256; b++) {
+            if (members[b]) {
+                this.members[b] = true;
+                count++;
+            }
+        }
+
+        this.values = new byte[count];
+        count = 0;
+        for (int b = 0; b < 256; b++) {
+            if (members[b]) {
+                this.values[count++] = (byte) b;
+
+                int bucket = 1 << ((b >>> 4) & 7);
+                this.lowTable[b & 0x0f] |= bucket;
+                this.highTable[b >>> 4] |= bucket;
+            }
+        }
+    }
+
+    /**
+     * Gets the bytes that can start a match of a pattern
+     * Characters of 0x80 or more can start with any byte that is not ASCII
+     * in the charsets the line scanner supports, so all of those are added
+     * @param pattern the pattern
+     * @param state the state matching starts from
+     * @return the set
+     */
+    public static ByteSet firstBytes(CompiledPattern pattern, int state) {
+        boolean[] members = new boolean[256];
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (pattern.next(state, (char) c) != CompiledPattern.DEAD_STATE) {
+                if (c < 0x80) {
+                    members[c] = true;
+                }
+                else {
+                    // Every ASCII character has been seen by now
+                    java.util.Arrays.fill(members, 0x80, 256, true);
+                    break;
+                }
+            }
+        }
+        return new ByteSet(members);
+    }
+
+    /**
+     * @param b a byte
+     * @return true if it is in the set
+     */
+    public boolean contains(byte b) {
+        return this.members[b & 0xff];
+    }
+
+    /**
+     * @return the number of bytes in the set
+     */
+    public int size() {
+        return this.values.length;
+    }
+
+    /**
+     * @return the bytes in the set in order
+     */
+    public byte[] values() {
+        return this.values.clone();
+    }
+
+    /**
+     * @return what a ByteScanner made for the set, or null if it has not made it yet
+     */
+    public Object getPrepared() {
+        return this.prepared;
+    }
+
+    /**
+     * @param prepared what a ByteScanner made for the set, it must never change
+     */
+    public void setPrepared(Object prepared) {
+        this.prepared = prepared;
+    }
+
+    /**
+     * @return the bucket of every low four bits
+     */
+    public byte[] lowTable() {
+        return this.lowTable.clone();
+    }
+
+    /**
+     * @return the buckets of every high four bits
+     */
+    public byte[] highTable() {
+        return this.highTable.clone();
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * A compressed state by class transition table
+ */
+
+
+package graphex;
+
+import java.util.*;
+
+
+/**
+ * A transition table stored with row displacement, as lexer generators do
+ * Every state either is a template, which stores all of its transitions, or
+ * has a default state that is a template it mostly agrees with and only
+ * stores the transitions that differ from it. The stored entries of all the
+ * rows are packed into one array, each row starting at its own base, and a
+ * check array records which state owns each slot. A lookup tries the row of
+ * the state and then the row of its default, so it is never more than two probes
+ */
+final class CombTable {
+    /** How many of the latest templates a new row is compared against */
+    private static final int TEMPLATE_WINDOW = 16;
+
+    private final int classCount;
+    private final int[] base;
+    private final int[] defaults;
+    private final int[] next;
+    private final int[] check;
+
+    /**
+     * Constructor for CombTable
+     * @param classCount the number of character classes
+     * @param base where the row of each state starts
+     * @param defaults the default state of each state or -1
+     * @param next the packed targets
+     * @param check the owner of each packed target or -1
+     */
+    private CombTable(int classCount, int[] base, int[] defaults, int[] next, int[] check) {
+        this.classCount = classCount;
+        this.base = base;
+        this.defaults = defaults;
+        this.next = next;
+        this.check = check;
+    }
+
+    /**
+     * Gets the state that is transitioned to
+     * The packed arrays are longer than the last base by a full row so no
+     * bounds check is needed
+     * @param state the current state
+     * @param c the class of the character read
+     * @return the next state or CompiledPattern.DEAD_STATE
+     */
+    public int get(int state, int c) {
+        int i = this.base[state] + c;
+        if (this.check[i] == state) {
+            return this.next[i];
+        }
+
+        int template = this.defaults[state];
+        if (template < 0) {
+            return CompiledPattern.DEAD_STATE;
+        }
+
+        i = this.base[template] + c;
+        return this.check[i] == template ? this.next[i] : CompiledPattern.DEAD_STATE;
+    }
+
+    /**
+     * @return the number of character classes
+     */
+    public int getClassCount() {
+        return this.classCount;
+    }
+
+    /**
+     * @return the number of bytes used by the arrays
+     */
+    public long getBytes() {
+        return 4L * (this.base.length + this.defaults.length + this.next.length + this.check.length);
+    }
+
+    /**
+     * @return the number of packed slots
+     */
+    public int getSlots() {
+        return this.next.length;
+    }
+
+    /**
+     * Builds a table one row at a time, the rows must be added in state order
+     */
+    static final class Builder {
+        private final int classCount;
+        private int[] base;
+        private int[] defaults;
+        private int[] next;
+        private int[] check;
+        private int used = 0;
+        private int firstFree = 0;
+        private int rows = 0;
+
+        // The full rows of the latest templates, the oldest is dropped first
+        private final ArrayDeque<int[]> templates = new ArrayDeque<int[]>();
+        private final ArrayDeque<Integer> templateStates = new ArrayDeque<Integer>();
+
+        /**
+         * Constructor for Builder
+         * @param stateCount the number of states, more rows can be added when it is not known
+         * @param classCount the number of character classes
+         */
+        Builder(int stateCount, int classCount) {
+            this.classCount = classCount;
+            this.base = new int[stateCount];
+            this.defaults = new int[stateCount];
+            this.next = new int[Math.max(16, classCount * 2)];
+            this.check = new int[this.next.length];
+            Arrays.fill(this.check, -1);
+        }
+
+        /**
+         * Adds the row of the next state
+         * @param row the target of every class, DEAD_STATE for none
+         */
+        void add(int[] row) {
+            int state = this.rows++;
+            if (state == this.base.length) {
+                this.base = Arrays.copyOf(this.base, Math.max(16, state * 2));
+                this.defaults = Arrays.copyOf(this.defaults, this.base.length);
+            }
+
+            int stored = 0;
+            for (int target : row) {
+                if (target != CompiledPattern.DEAD_STATE) {
+                    stored++;
+                }
+            }
+
+            // Use the template that leaves the fewest entries to store
+            int bestState = -1;
+            int[] bestRow = null;
+            int bestDiffer = stored;
+            Iterator<Integer> states = this.templateStates.iterator();
+            for (int[] template : this.templates) {
+                int templateState = states.next();
+                int differ = 0;
+                for (int c = 0; c < this.classCount && differ < bestDiffer; c++) {
+                    if (row[c] != template[c]) {
+                        differ++;
+                    }
+                }
+                if (differ < bestDiffer) {
+                    bestDiffer = differ;
+                    bestState = templateState;
+                    bestRow = template;
+                }
+            }
+
+            this.defaults[state] = bestState;
+            int[] classes = new int[bestDiffer];
+            int count = 0;
+
+            if (bestRow == null) {
+                // Nothing is close enough so this row stores everything and can be a template
+                for (int c = 0; c < this.classCount; c++) {
+                    if (row[c] != CompiledPattern.DEAD_STATE) {
+                        classes[count++] = c;
+                    }
+                }
+                if (stored > 0) {
+                    if (this.templates.size() == TEMPLATE_WINDOW) {
+                        this.templates.removeFirst();
+                        this.templateStates.removeFirst();
+                    }
+                    this.templates.addLast(row.clone());
+                    this.templateStates.addLast(state);
+                }
+            }
+            else {
+                // Only the differences are stored, a dead entry is stored as well
+                // so the lookup does not fall through to the template
+                for (int c = 0; c < this.classCount; c++) {
+                    if (row[c] != bestRow[c]) {
+                        classes[count++] = c;
+                    }
+                }
+            }
+
+            place(state, row, classes);
+        }
+
+        /**
+         * Finds the first base where every stored entry of a row has a free slot
+         * @param state the state
+         * @param row the target of every class
+         * @param classes the classes that are stored
+         */
+        private void place(int state, int[] row, int[] classes) {
+            if (classes.length == 0) {
+                this.base[state] = 0;
+                return;
+            }
+
+            int b = Math.max(0, this.firstFree - classes[0]);
+            while (!fits(b, classes)) {
+                b++;
+            }
+
+            grow(b + this.classCount);
+            for (int c : classes) {
+                this.check[b + c] = state;
+                this.next[b + c] = row[c];
+            }
+            this.base[state] = b;
+            this.used = Math.max(this.used, b + classes[classes.length - 1] + 1);
+
+            while (this.firstFree < this.check.length && this.check[this.firstFree] != -1) {
+                this.firstFree++;
+            }
+        }
+
+        /**
+         * @param b a base
+         * @param classes the classes that are stored
+         * @return true if none of the slots are taken
+         */
+        private boolean fits(int b, int[] classes) {
+            for (int c : classes) {
+                if (b + c < this.check.length && this.check[b + c] != -1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Makes the packed arrays at least a length
+         * @param length the length needed
+         */
+        private void grow(int length) {
+            if (length <= this.next.length) {
+                return;
+            }
+
+            int size = Math.max(length, this.next.length * 2);
+            int old = this.check.length;
+            this.next = Arrays.copyOf(this.next, size);
+            this.check = Arrays.copyOf(this.check, size);
+            Arrays.fill(this.check, old, size, -1);
+        }
+
+        /**
+         * @return the finished table, the packed arrays are cut down to what is used
+         */
+        CombTable build() {
+            // One full row past the last slot used keeps every lookup in bounds
+            int length = this.used + this.classCount;
+            grow(length);
+            return new CombTable(this.classCount, Arrays.copyOf(this.base, this.rows),
+                    Arrays.copyOf(this.defaults, this.rows), Arrays.copyOf(this.next, length),
+                    Arrays.copyOf(this.check, length));
+        }
+    }
+}
@@ -0,0 +1,431 @@
+/*
+ * An immutable form of a DFA that can be shared between threads
+ */
+
+
+package graphex;
+
+import java.util.*;
+
+
+/**
+ * A DFA compiled into primitive tables
+ * Characters are grouped into classes that every state treats the same way,
+ * class 0 holds every character the pattern does not use. The class map is
+ * kept in blocks of 256 characters and blocks that are the same are only
+ * kept once, so a pattern that only uses a few characters does not hold a
+ * map of every character. The transitions
+ * are kept in a dense state by class table unless it would be larger than
+ * the memory limit, then they are kept in a CombTable instead. The tables
+ * are final and never change so one pattern can be used by any number of
+ * threads without locking, each thread scans with its own PatternMatcher.
+ * The bytes that can start a match are only worked out when first asked for
+ */
+final class CompiledPattern {
+    /** The state used for a missing transition */
+    public static final int DEAD_STATE = -1;
+
+    private static long maxDenseBytes = Long.getLong("graphex.table.maxDenseBytes", 64L << 20);
+
+    private final int startState;
+    private final int stateCount;
+    private final int classCount;
+    private final char[] latin1Classes;
+    private final char[][] classMap;
+    private final int[] transitions;
+    private final CombTable comb;
+    private final boolean[] accepting;
+    private final JitMatcher jit;
+    private volatile ByteSet firstBytes;
+
+    /**
+     * Constructor for CompiledPattern
+     * @param dfa the DFA to be compiled, it is only read
+     */
+    public CompiledPattern(DFA dfa) {
+        long start = GraphexStats.start();
+        Map<Integer, Map<String, Integer>> delta = dfa.getDeltaTranstions();
+
+        // The states of the DFA are numbered from 0 so the largest one gives the count
+        int states = 0;
+        for (int state : delta.keySet()) {
+            states = Math.max(states, state + 1);
+        }
+        states = Math.max(states, dfa.getStart() + 1);
+
+        // Get the column of every character used by a transition, the columns
+        // are kept sparse as state and target pairs in state order
+        TreeMap<Character, List<Integer>> letterColumns = new TreeMap<Character, List<Integer>>();
+        for (int s = 0; s < states; s++) {
+            Map<String, Integer> stateTransitions = delta.get(s);
+            if (stateTransitions == null) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> t : stateTransitions.entrySet()) {
+                if (t.getValue() != null) {
+                    List<Integer> column = letterColumns.computeIfAbsent(toLetter(t.getKey()),
+                            k -> new ArrayList<Integer>());
+                    column.add(s);
+                    column.add(t.getValue());
+                }
+            }
+        }
+
+        // Characters that go to the same state from every state share a class
+        char[] map = new char[Character.MAX_VALUE + 1];
+        Map<List<Integer>, Integer> columns = new HashMap<List<Integer>, Integer>();
+
+        for (Map.Entry<Character, List<Integer>> letter : letterColumns.entrySet()) {
+            Integer c = columns.get(letter.getValue());
+            if (c == null) {
+                c = columns.size() + 1;
+                columns.put(letter.getValue(), c);
+            }
+
+            if (c > Character.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many character classes");
+            }
+            map[letter.getKey()] = (char) (int) c;
+        }
+
+        int classes = columns.size() + 1;
+
+        // Fill the table row by row, class 0 always goes to the dead state
+        TableWriter writer = new TableWriter(states, classes);
+        int[] row = new int[classes];
+        for (int s = 0; s < states; s++) {
+            Arrays.fill(row, DEAD_STATE);
+            Map<String, Integer> stateTransitions = delta.get(s);
+            if (stateTransitions != null) {
+                for (Map.Entry<String, Integer> t : stateTransitions.entrySet()) {
+                    if (t.getValue() != null) {
+                        row[map[toLetter(t.getKey())]] = t.getValue();
+                    }
+                }
+            }
+            writer.add(row);
+        }
+
+        boolean[] accept = new boolean[states];
+        for (int state : dfa.getAcceptStates()) {
+            accept[state] = true;
+        }
+
+        this.startState = dfa.getStart();
+        this.stateCount = states;
+        this.classCount = classes;
+        this.classMap = toBlocks(map);
+        this.latin1Classes = this.classMap[0];
+        this.transitions = writer.dense;
+        this.comb = writer.comb();
+        this.accepting = accept;
+
+        // Small automata are also generated as bytecode, this is done last
+        // since the generator reads the tables
+        this.jit = JitCompiler.compile(this);
+
+        GraphexStats.compiled(start, getTableBytes());
+    }
+
+    /**
+     * Constructor for a pattern made from the tables of another one
+     * @param startState the start state
+     * @param stateCount the number of states
+     * @param classCount the number of character classes
+     * @param classMap the class of every character in blocks of 256
+     * @param transitions the dense table, or null if comb is used
+     * @param comb the compressed table, or null if transitions is used
+     * @param accepting which states accept
+     */
+    private CompiledPattern(int startState, int stateCount, int classCount, char[][] classMap,
+            int[] transitions, CombTable comb, boolean[] accepting) {
+        this.startState = startState;
+        this.stateCount = stateCount;
+        this.classCount = classCount;
+        this.classMap = classMap;
+        this.latin1Classes = classMap[0];
+        this.transitions = transitions;
+        this.comb = comb;
+        this.accepting = accepting;
+        this.jit = null;
+    }
+
+    /**
+     * Splits a class map into blocks of 256 characters, each block that is the
+     * same as one before it is shared
+     * @param map the class of every character
+     * @return the blocks, indexed by the high byte of the character
+     */
+    private static char[][] toBlocks(char[] map) {
+        char[][] blocks = new char[256][];
+        List<char[]> kept = new ArrayList<char[]>();
+
+        for (int b = 0; b < 256; b++) {
+            char[] block = Arrays.copyOfRange(map, b << 8, (b + 1) << 8);
+            char[] same = null;
+            for (char[] other : kept) {
+                if (Arrays.equals(other, block)) {
+                    same = other;
+                    break;
+                }
+            }
+
+            if (same == null) {
+                kept.add(block);
+                blocks[b] = block;
+            }
+            else {
+                blocks[b] = same;
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Fills in either a dense table or a CombTable one row at a time, the
+     * dense table is used unless it would be larger than maxDenseBytes
+     */
+    private static final class TableWriter {
+        final int[] dense;
+        final CombTable.Builder builder;
+        private int rows = 0;
+
+        /**
+         * Constructor for TableWriter
+         * @param states the number of states
+         * @param classes the number of character classes
+         */
+        TableWriter(int states, int classes) {
+            boolean compress = 4L * states * classes > maxDenseBytes;
+            this.dense = compress ? null : new int[states * classes];
+            this.builder = compress ? new CombTable.Builder(states, classes) : null;
+        }
+
+        /**
+         * @param row the targets of the next state, it can be reused once this returns
+         */
+        void add(int[] row) {
+            if (this.dense != null) {
+                System.arraycopy(row, 0, this.dense, this.rows * row.length, row.length);
+            }
+            else {
+                this.builder.add(row);
+            }
+            this.rows++;
+        }
+
+        /**
+         * @return the compressed table or null if the dense one was used
+         */
+        CombTable comb() {
+            return this.builder == null ? null : this.builder.build();
+        }
+    }
+
+    /**
+     * Sets the largest dense table, patterns that need more use a compressed table
+     * @param bytes the size in bytes
+     */
+    public static void setMaxDenseBytes(long bytes) {
+        maxDenseBytes = bytes;
+    }
+
+    /**
+     * Creates the pattern that can start matching at any position
+     * Each state is a set of states of this pattern, the start state is always
+     * added back after every character so a match can begin anywhere. The
+     * new pattern accepts as soon as any match has ended. The number of sets
+     * can grow exponentially, so it is held to the StateBudget like nfaToDFA.
+     * The rows go into a CombTable as they are made, and the table is made
+     * dense at the end if it is small enough
+     * @return the unanchored pattern, it uses the same character classes
+     * @throws StateBudgetException if it would be larger than the StateBudget
+     */
+    public CompiledPattern unanchored() {
+        Map<List<Integer>, Integer> setToState = new HashMap<List<Integer>, Integer>();
+        List<List<Integer>> sets = new ArrayList<List<Integer>>();
+        CombTable.Builder builder = new CombTable.Builder(16, this.classCount);
+        long entries = 1;
+
+        List<Integer> startSet = Collections.singletonList(this.startState);
+        setToState.put(startSet, 0);
+        sets.add(startSet);
+
+        // Go through the sets in the order they were found, which is the order of the rows
+        int[] row = new int[this.classCount];
+        for (int i = 0; i < sets.size(); i++) {
+            for (int c = 0; c < this.classCount; c++) {
+                TreeSet<Integer> targets = new TreeSet<Integer>();
+                targets.add(this.startState);
+                for (int s : sets.get(i)) {
+                    int target = nextClass(s, c);
+                    if (target != DEAD_STATE) {
+                        targets.add(target);
+                    }
+                }
+
+                List<Integer> targetSet = new ArrayList<Integer>(targets);
+                Integer state = setToState.get(targetSet);
+                if (state == null) {
+                    state = sets.size();
+                    setToState.put(targetSet, state);
+                    sets.add(targetSet);
+
+                    // Give up before the sets take all of the memory
+                    entries += targetSet.size();
+                    StateBudget.check(sets.size(), entries);
+                }
+                row[c] = state;
+            }
+
+            builder.add(row);
+        }
+
+        int states = sets.size();
+        boolean[] accept = new boolean[states];
+        for (int i = 0; i < states; i++) {
+            for (int s : sets.get(i)) {
+                accept[i] |= this.accepting[s];
+            }
+        }
+
+        CombTable comb = builder.build();
+        if (4L * states * this.classCount > maxDenseBytes) {
+            return new CompiledPattern(0, states, this.classCount, this.classMap, null, comb, accept);
+        }
+
+        int[] dense = new int[states * this.classCount];
+        for (int s = 0; s < states; s++) {
+            for (int c = 0; c < this.classCount; c++) {
+                dense[s * this.classCount + c] = comb.get(s, c);
+            }
+        }
+        return new CompiledPattern(0, states, this.classCount, this.classMap, dense, null, accept);
+    }
+
+    /**
+     * Gets the character a transition label stands for
+     * @param label the label of a DFA transition
+     * @return the character
+     */
+    private static char toLetter(String label) {
+        if (label.length() != 1) {
+            throw new IllegalArgumentException("Transition label is not one character: " + label);
+        }
+        return label.charAt(0);
+    }
+
+    /**
+     * @return the start state
+     */
+    public int getStart() {
+        return this.startState;
+    }
+
+    /**
+     * @return the number of states
+     */
+    public int getStateCount() {
+        return this.stateCount;
+    }
+
+    /**
+     * @return the number of character classes including class 0
+     */
+    public int getClassCount() {
+        return this.classCount;
+    }
+
+    /**
+     * @param c a character
+     * @return the class of the character
+     */
+    public int classOf(char c) {
+        return c < 256 ? this.latin1Classes[c] : this.classMap[c >>> 8][c & 0xff];
+    }
+
+    /**
+     * Gets the state that is transitioned to
+     * @param state the current state, it must not be the dead state
+     * @param c the character read
+     * @return the next state or DEAD_STATE if there is no transition
+     */
+    public int next(int state, char c) {
+        return nextClass(state, c < 256 ? this.latin1Classes[c] : this.classMap[c >>> 8][c & 0xff]);
+    }
+
+    /**
+     * Gets the state that is transitioned to on a character class
+     * @param state the current state, it must not be the dead state
+     * @param c the class of the character read
+     * @return the next state or DEAD_STATE if there is no transition
+     */
+    public int nextClass(int state, int c) {
+        int[] table = this.transitions;
+        if (table != null) {
+            return table[state * this.classCount + c];
+        }
+        return this.comb.get(state, c);
+    }
+
+    /**
+     * @return true if the transitions are kept in a compressed table
+     */
+    public boolean isCompressed() {
+        return this.comb != null;
+    }
+
+    /**
+     * @return the size of the transition table in bytes
+     */
+    public long getTableBytes() {
+        return this.comb != null ? this.comb.getBytes() : 4L * this.transitions.length;
+    }
+
+    /**
+     * @param state a state or the dead state
+     * @return true if the state accepts
+     */
+    public boolean isAccepting(int state) {
+        return state != DEAD_STATE && this.accepting[state];
+    }
+
+    /**
+     * @return the generated matcher or null if the pattern was too large
+     */
+    public JitMatcher getJit() {
+        return this.jit;
+    }
+
+    /**
+     * Gets the bytes that can start a match from the start state
+     * They are worked out once and shared by every line scanner of the pattern,
+     * two threads asking at once can both work them out but get the same set
+     * @return the set
+     */
+    public ByteSet getFirstBytes() {
+        ByteSet set = this.firstBytes;
+        if (set == null) {
+            set = ByteSet.firstBytes(this, this.startState);
+            this.firstBytes = set;
+        }
+        return set;
+    }
+
+    /**
+     * @return a new matcher, it must only be used by one thread at a time
+     */
+    public PatternMatcher matcher() {
+        return new PatternMatcher(this);
+    }
+
+    /**
+     * @return the start state, the number of states and classes and the kind of table
+     */
+    @Override
+    public String toString() {
+        return "CompiledPattern start = " + this.startState + " states = " + this.stateCount
+                + " classes = " + this.classCount + " table = " + (isCompressed() ? "comb " : "dense ")
+                + getTableBytes() + " bytes";
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Read gzip and zstd files while they are being matched
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * Opens input files, decompressing them if their first bytes show they are
+ * gzip or zstd. zstd needs the zstd-jni library on the class path since the
+ * JDK cannot read it
+ */
+final class CompressedInput {
+    private static final byte[] GZIP_MAGIC = { 0x1f, (byte) 0x8b };
+    private static final byte[] ZSTD_MAGIC = { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd };
+
+    /**
+     * Constructor for CompressedInput, it only has static methods
+     */
+    private CompressedInput() {
+    }
+
+    /**
+     * Checks the first bytes of a file for a compression format
+     * @param file the file
+     * @return "gzip", "zstd" or null if the file is not compressed
+     * @throws IOException if the file cannot be read
+     */
+    public static String compression(Path file) throws IOException {
+        byte[] magic = new byte[4];
+        int read = 0;
+
+        try (InputStream in = Files.newInputStream(file)) {
+            while (read < magic.length) {
+                int n = in.read(magic, read, magic.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        }
+
+        if (startsWith(magic, read, GZIP_MAGIC)) {
+            return "gzip";
+        }
+        if (startsWith(magic, read, ZSTD_MAGIC)) {
+            return "zstd";
+        }
+        return null;
+    }
+
+    /**
+     * @param bytes the bytes read
+     * @param length how many were read
+     * @param prefix the magic bytes
+     * @return true if the bytes start with the magic bytes
+     */
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Opens a compressed file and decompresses it on another thread into a
+     * ring of buffers, so the reader can match one buffer while the next is inflated
+     * @param file the file
+     * @param compression the format from compression()
+     * @param decompressor runs the decompression
+     * @param onClose run once the file is closed, such as giving back an open file permit
+     * @return the decompressed bytes
+     * @throws IOException if the file cannot be opened or the format is not supported
+     */
+    public static InputStream openPipelined(Path file, String compression, Executor decompressor,
+            Runnable onClose) throws IOException {
+        InputStream raw = new BufferedInputStream(Files.newInputStream(file), 1 << 16);
+        InputStream in;
+
+        try {
+            in = decompress(raw, compression);
+        }
+        catch (IOException e) {
+            raw.close();
+            throw e;
+        }
+
+        PipelinedInputStream pipe = new PipelinedInputStream(4, 1 << 16);
+        decompressor.execute(() -> pipe.fill(in, onClose));
+        return pipe;
+    }
+
+    /**
+     * @param in the compressed bytes
+     * @param compression the format from compression()
+     * @return the decompressed bytes
+     * @throws IOException if the format is not supported
+     */
+    private static InputStream decompress(InputStream in, String compression) throws IOException {
+        if (compression.equals("gzip")) {
+            return new GZIPInputStream(in, 1 << 16);
+        }
+
+        // zstd-jni is only used if it is there
+        try {
+            return (InputStream) Class.forName("com.github.luben.zstd.ZstdInputStream")
+                    .getConstructor(InputStream.class).newInstance(in);
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            throw new IOException("Reading zstd files needs zstd-jni on the class path");
+        }
+    }
+}
+
+
+/**
+ * An input stream filled by another thread through a ring of reusable buffers
+ * The producer fills empty buffers and passes them to the reader, which hands
+ * each one back once it has read it, so no buffers are made after the start
+ */
+final class PipelinedInputStream extends InputStream {
+    private final BlockingQueue<Chunk> empty;
+    private final BlockingQueue<Chunk> full;
+    private Chunk current;
+    private int position;
+    private boolean finished;
+    private volatile boolean closed;
+
+    /**
+     * A buffer and how much of it holds data, a length of -1 marks the end
+     */
+    private static final class Chunk {
+        final byte[] bytes;
+        int length;
+        IOException error;
+
+        Chunk(int size) {
+            this.bytes = new byte[size];
+        }
+    }
+
+    /**
+     * Constructor for PipelinedInputStream
+     * @param buffers the number of buffers in the ring
+     * @param size the size of each buffer
+     */
+    public PipelinedInputStream(int buffers, int size) {
+        this.empty = new ArrayBlockingQueue<Chunk>(buffers);
+        // One more place than there are buffers so an error can always be passed on
+        this.full = new ArrayBlockingQueue<Chunk>(buffers + 1);
+        for (int i = 0; i < buffers; i++) {
+            this.empty.add(new Chunk(size));
+        }
+    }
+
+    /**
+     * Reads everything from a stream into the ring, this runs on the producer thread
+     * @param in the stream to read, it is closed at the end
+     * @param onClose run once the stream is closed
+     */
+    void fill(InputStream in, Runnable onClose) {
+        try (InputStream source = in) {
+            while (!this.closed) {
+                Chunk chunk = this.empty.take();
+                chunk.error = null;
+
+                // Fill as much of the buffer as possible before passing it on
+                int length = 0;
+                int n = 0;
+                while (length < chunk.bytes.length && (n = source.read(chunk.bytes, length, chunk.bytes.length - length)) > 0) {
+                    length += n;
+                }
+
+                chunk.length = length;
+                if (length > 0) {
+                    this.full.put(chunk);
+                }
+                if (n < 0 || length == 0) {
+                    Chunk end = length > 0 ? this.empty.take() : chunk;
+                    end.length = -1;
+                    this.full.put(end);
+                    return;
+                }
+            }
+        }
+        catch (IOException e) {
+            failed(e);
+        }
+        catch (InterruptedException e) {
+            failed(new InterruptedIOException("Decompression was interrupted"));
+        }
+        finally {
+            onClose.run();
+        }
+    }
+
+    /**
+     * Passes an error on to the reader
+     * @param e the error
+     */
+    private void failed(IOException e) {
+        Chunk end = new Chunk(0);
+        end.length = -1;
+        end.error = e;
+        this.full.offer(end);
+    }
+
+    /**
+     * Makes sure there is a buffer with bytes left to read
+     * @return false at the end of the stream
+     * @throws IOException if the producer failed
+     */
+    private boolean nextChunk() throws IOException {
+        while (this.current == null || this.position >= this.current.length) {
+            if (this.finished) {
+                return false;
+            }
+
+            // Hand the finished buffer back to the producer
+            if (this.current != null) {
+                this.empty.offer(this.current);
+                this.current = null;
+            }
+
+            Chunk chunk;
+            try {
+                chunk = this.full.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Reading was interrupted");
+            }
+
+            if (chunk.length < 0) {
+                this.finished = true;
+                if (chunk.error != null) {
+                    throw chunk.error;
+                }
+                return false;
+            }
+
+            this.current = chunk;
+            this.position = 0;
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunk()) {
+            return -1;
+        }
+        return this.current.bytes[this.position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunk()) {
+            return -1;
+        }
+
+        int n = Math.min(len, this.current.length - this.position);
+        System.arraycopy(this.current.bytes, this.position, b, off, n);
+        this.position += n;
+        return n;
+    }
+
+    /**
+     * Stops the producer, any buffers it is waiting on are given back
+     */
+    @Override
+    public void close() {
+        this.closed = true;
+        this.finished = true;
+
+        // Free up space so a producer waiting for a buffer can see it is closed
+        Chunk chunk;
+        while ((chunk = this.full.poll()) != null) {
+            this.empty.offer(chunk);
+        }
+        if (this.current != null) {
+            this.empty.offer(this.current);
+            this.current = null;
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Follow a growing file and only match what was added
+ */
+
+
+package graphex;
+
+import java.util.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Follows a file as it grows, like tail -f, and matches each new line
+ * Only the bytes added since the last read are matched. The DFA state of a
+ * line that is not finished yet is kept, so a line written in pieces is
+ * still only read once. Lines end at '\n', '\r' or "\r\n" like
+ * BufferedReader.readLine. If the file is rotated the old file is finished and
+ * the new one is read from the start, if it is truncated it is read again
+ * from the start. After every read a checkpoint with the file key (device
+ * and inode), byte offset and DFA state is saved so a restart carries on
+ * where it left off. The checkpoint also holds the fingerprint of the DFA,
+ * since a state number means nothing to another DFA, and a checkpoint saved
+ * with another pattern is not used
+ */
+class FileFollower {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private CompiledPattern pattern;
+    private String fingerprint;
+    private Path file;
+    private Path checkpoint;
+    private long pollMillis;
+
+    private PatternMatcher matcher;
+    private CharsetDecoder decoder;
+    private StringBuilder currentLine = new StringBuilder();
+    private FileChannel channel;
+    private String fileKey;
+    private long offset;
+    private long lineStart;
+    private long lineNumber;
+    private long matchCount;
+    private boolean skipNewline;
+
+    /**
+     * Constructor for FileFollower
+     * @param pattern the pattern to match each line with
+     * @param fingerprint the fingerprint of the DFA the pattern was compiled from, from StateProfile.fingerprint
+     * @param file the file to follow
+     * @param checkpoint where the position is saved, or null to not save it
+     * @param pollMillis the longest time to wait between checks of the file
+     */
+    public FileFollower(CompiledPattern pattern, String fingerprint, String file, String checkpoint, long pollMillis) {
+        this.pattern = pattern;
+        this.fingerprint = fingerprint;
+        this.file = Paths.get(file);
+        this.checkpoint = checkpoint == null ? null : Paths.get(checkpoint);
+        this.pollMillis = pollMillis;
+        this.matcher = pattern.matcher();
+        this.decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Follows the file until the thread is interrupted
+     * @param out where the matches are printed
+     * @throws IOException if the file or checkpoint cannot be read or written
+     */
+    public void follow(PrintStream out) throws IOException {
+        Path directory = this.file.toAbsolutePath().getParent();
+
+        try (WatchService watcher = directory.getFileSystem().newWatchService()) {
+            // Changes are watched for, but the file is also checked every poll in
+            // case the file system does not report them
+            directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+
+            restore();
+
+            while (!Thread.currentThread().isInterrupted()) {
+                readNewBytes(out);
+
+                WatchKey key = watcher.poll(this.pollMillis, TimeUnit.MILLISECONDS);
+                if (key != null) {
+                    key.pollEvents();
+                    key.reset();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            if (this.channel != null) {
+                this.channel.close();
+            }
+        }
+    }
+
+    /**
+     * Reads everything added to the file since the last read, then handles a
+     * rotation or truncation and saves the checkpoint
+     * @param out where the matches are printed
+     * @throws IOException if the file or checkpoint cannot be read or written
+     */
+    public void readNewBytes(PrintStream out) throws IOException {
+        long before = this.offset;
+        String beforeKey = this.fileKey;
+
+        if (this.channel == null && !open(0)) {
+            return;
+        }
+
+        // If the file got smaller it was truncated so read it again from the start
+        if (this.channel.size() < this.offset) {
+            this.channel.position(0);
+            startFile(0);
+        }
+
+        readToEnd(out);
+
+        // If a different file now has the name the old one was rotated, so finish
+        // its last line and read the new one from the start
+        String key = keyOf(this.file);
+        if (key != null && !key.equals(this.fileKey)) {
+            readToEnd(out);
+            endLine(out);
+            this.channel.close();
+            this.channel = null;
+            open(0);
+            readToEnd(out);
+        }
+
+        if (this.offset != before || !Objects.equals(this.fileKey, beforeKey)) {
+            save();
+        }
+    }
+
+    /**
+     * Opens the file and moves to a position
+     * @param position the byte offset to read from
+     * @return false if the file does not exist yet
+     * @throws IOException if the file cannot be opened
+     */
+    private boolean open(long position) throws IOException {
+        if (!Files.exists(this.file)) {
+            return false;
+        }
+
+        this.channel = FileChannel.open(this.file, StandardOpenOption.READ);
+        this.fileKey = keyOf(this.file);
+        this.channel.position(position);
+        if (position == 0) {
+            startFile(0);
+        }
+        return true;
+    }
+
+    /**
+     * Starts matching a file from an offset with nothing of a line read
+     * @param position the byte offset
+     */
+    private void startFile(long position) {
+        this.offset = position;
+        this.lineStart = position;
+        this.lineNumber = 0;
+        this.skipNewline = false;
+        this.currentLine.setLength(0);
+        this.matcher.reset();
+        this.decoder.reset();
+    }
+
+    /**
+     * Reads and matches everything up to the end of the open file
+     * @param out where the matches are printed
+     * @throws IOException if the file cannot be read
+     */
+    private void readToEnd(PrintStream out) throws IOException {
+        long start = GraphexStats.start();
+        long startOffset = this.offset;
+        long startLines = this.lineNumber;
+        long startMatches = this.matchCount;
+
+        ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+        CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+
+        while (true) {
+            bytes.clear();
+            if (this.channel.read(bytes, this.offset) <= 0) {
+                break;
+            }
+            bytes.flip();
+            long before = this.offset;
+
+            while (bytes.hasRemaining()) {
+                // A '\n' straight after a '\r' is part of the same line end, even
+                // when it comes in a later read
+                if (this.skipNewline) {
+                    this.skipNewline = false;
+                    if (bytes.get(bytes.position()) == '\n') {
+                        bytes.position(bytes.position() + 1);
+                        this.offset++;
+                        this.lineStart = this.offset;
+                        continue;
+                    }
+                }
+
+                // Decode up to the next line end, a line end byte is never part of
+                // a longer character in the charsets used for logs
+                int newline = -1;
+                for (int i = bytes.position(); i < bytes.limit(); i++) {
+                    if (bytes.get(i) == '\n' || bytes.get(i) == '\r') {
+                        newline = i;
+                        break;
+                    }
+                }
+
+                int limit = bytes.limit();
+                if (newline != -1) {
+                    bytes.limit(newline);
+                }
+
+                int position = bytes.position();
+                chars.clear();
+                this.decoder.decode(bytes, chars, newline != -1);
+                if (newline != -1) {
+                    this.decoder.flush(chars);
+                }
+                chars.flip();
+
+                this.matcher.feed(chars, 0, chars.length());
+                this.currentLine.append(chars);
+                this.offset += bytes.position() - position;
+                bytes.limit(limit);
+
+                // Without a newline the rest is part of a character that is not
+                // finished, it is read again next time
+                if (newline == -1) {
+                    break;
+                }
+
+                // Consume the line end and finish the line
+                bytes.position(newline + 1);
+                this.offset++;
+                endLine(out);
+                this.lineStart = this.offset;
+                this.skipNewline = bytes.get(newline) == '\r';
+            }
+
+            // Stop if only part of a character is left
+            if (this.offset == before) {
+                break;
+            }
+        }
+
+        GraphexStats.scanned(start, this.offset - startOffset, this.lineNumber - startLines,
+                this.matchCount - startMatches);
+    }
+
+    /**
+     * Prints the current line if it matched and starts the next one
+     * @param out where the matches are printed
+     */
+    private void endLine(PrintStream out) {
+        if (this.currentLine.length() > 0 && this.matcher.isAccepting()) {
+            out.println("String matched " + this.currentLine);
+            this.matchCount++;
+        }
+        else if (this.currentLine.length() > 0 || this.offset > this.lineStart) {
+            if (this.pattern.isAccepting(this.pattern.getStart())) {
+                out.println("Empty String matched");
+            }
+        }
+
+        this.lineNumber++;
+        this.currentLine.setLength(0);
+        this.matcher.reset();
+        this.decoder.reset();
+    }
+
+    /**
+     * Loads the checkpoint and opens the file where it left off
+     * The text of the unfinished line is read again so it can be printed, but
+     * the DFA state is taken from the checkpoint. A checkpoint saved with a
+     * different DFA, or one that cannot be read, is not used and the file is
+     * read from the start
+     * @throws IOException if the checkpoint or file cannot be read
+     */
+    private void restore() throws IOException {
+        if (this.checkpoint == null || !Files.exists(this.checkpoint)) {
+            open(0);
+            return;
+        }
+
+        Properties saved = new Properties();
+        String key;
+        long savedOffset;
+        long savedLineStart;
+        int savedState;
+        try (Reader reader = Files.newBufferedReader(this.checkpoint, StandardCharsets.UTF_8)) {
+            saved.load(reader);
+
+            key = saved.getProperty("fileKey");
+            savedOffset = Long.parseLong(saved.getProperty("offset", "0"));
+            savedLineStart = Long.parseLong(saved.getProperty("lineStart", "0"));
+            savedState = Integer.parseInt(saved.getProperty("state", "" + this.pattern.getStart()));
+            if (savedLineStart < 0 || savedOffset < savedLineStart || savedState < 0) {
+                throw new NumberFormatException();
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // A number that does not parse or a bad escape in the file
+            System.err.println("The checkpoint " + this.checkpoint + " is not valid so the file is read from the start");
+            open(0);
+            return;
+        }
+
+        // Only carry on if it is the same pattern and file and it has not been truncated
+        if (!this.fingerprint.equals(saved.getProperty("fingerprint"))) {
+            System.err.println("The checkpoint is for a different pattern so the file is read from the start");
+            open(0);
+            return;
+        }
+        if (!Files.exists(this.file) || key == null || !key.equals(keyOf(this.file))
+                || Files.size(this.file) < savedOffset || savedState >= this.pattern.getStateCount()) {
+            open(0);
+            return;
+        }
+
+        open(savedLineStart);
+        startFile(savedLineStart);
+
+        // Get the text of the unfinished line back without matching it again
+        ByteBuffer partial = ByteBuffer.allocate((int) (savedOffset - savedLineStart));
+        while (partial.hasRemaining() && this.channel.read(partial) > 0) {
+        }
+        partial.flip();
+        this.currentLine.append(this.decoder.decode(partial));
+        this.decoder.reset();
+
+        this.offset = savedOffset;
+        this.skipNewline = Boolean.parseBoolean(saved.getProperty("skipNewline"));
+        this.matcher.setState(savedState);
+    }
+
+    /**
+     * Saves the checkpoint, it is written to a new file that then replaces the old one
+     * @throws IOException if the checkpoint cannot be written
+     */
+    private void save() throws IOException {
+        if (this.checkpoint == null) {
+            return;
+        }
+
+        Properties saved = new Properties();
+        saved.setProperty("fingerprint", this.fingerprint);
+        saved.setProperty("file", this.file.toString());
+        saved.setProperty("fileKey", String.valueOf(this.fileKey));
+        saved.setProperty("offset", "" + this.offset);
+        saved.setProperty("lineStart", "" + this.lineStart);
+        saved.setProperty("state", "" + this.matcher.state());
+        saved.setProperty("skipNewline", "" + this.skipNewline);
+
+        Path temp = this.checkpoint.resolveSibling(this.checkpoint.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            saved.store(writer, "graphex follow checkpoint");
+        }
+        Files.move(temp, this.checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @param path a file
+     * @return the key of the file, the device and inode on Unix, or null if it does not exist
+     */
+    private static String keyOf(Path path) {
+        try {
+            Object key = Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+            return key == null ? null : key.toString();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Scan many files with a single compiled pattern
+ */
+
+
+package graphex;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+
+/**
+ * Scans a list of files and directories with one compiled pattern
+ * Files are streamed and matched on a fixed pool of workers, the results are
+ * printed in the same order the files were given. Compressed files are
+ * inflated on an I/O executor while a worker matches them
+ */
+class FileScanner {
+    private CompiledPattern pattern;
+    private SpanFinder finder;
+    private int workers;
+    private int maxOpenFiles;
+    private boolean recursive;
+    private ByteLineScanner lineScanner;
+    private NfaPattern nfa;
+    private boolean find;
+
+    /**
+     * Constructor for FileScanner
+     * @param pattern the pattern shared by all of the workers
+     * @param finder used to print every match inside each line, or null to only match whole lines
+     * @param workers the number of threads used for matching
+     * @param maxOpenFiles the most files that can be open at once
+     * @param recursive true if directories should be walked
+     */
+    public FileScanner(CompiledPattern pattern, SpanFinder finder, int workers, int maxOpenFiles, boolean recursive) {
+        this.pattern = pattern;
+        this.finder = finder;
+        this.workers = workers;
+        this.maxOpenFiles = maxOpenFiles;
+        this.recursive = recursive;
+
+        // Lines are split and filtered as bytes when the charset allows it
+        Charset charset = Charset.defaultCharset();
+        if (ByteLineScanner.supports(charset)) {
+            this.lineScanner = new ByteLineScanner(pattern, finder, charset);
+        }
+    }
+
+    /**
+     * Constructor for FileScanner when the pattern is matched with its NFA
+     * Lines are always read as characters since ByteLineScanner needs a DFA
+     * @param nfa the NFA shared by all of the workers
+     * @param find true to print every match inside each line, false to only match whole lines
+     * @param workers the number of threads used for matching
+     * @param maxOpenFiles the most files that can be open at once
+     * @param recursive true if directories should be walked
+     */
+    public FileScanner(NfaPattern nfa, boolean find, int workers, int maxOpenFiles, boolean recursive) {
+        this.nfa = nfa;
+        this.find = find;
+        this.workers = workers;
+        this.maxOpenFiles = maxOpenFiles;
+        this.recursive = recursive;
+    }
+
+    /**
+     * Expands the inputs into the list of files to be scanned
+     * Directories are walked in sorted order so the output is always the same
+     * @param inputs the files and directories given
+     * @param recursive true if directories should be walked
+     * @param out where problems with the inputs are printed
+     * @return the files to scan
+     */
+    public static List<String> collectFiles(List<String> inputs, boolean recursive, PrintStream out) {
+        List<String> files = new ArrayList<String>();
+
+        for (String input : inputs) {
+            Path path = Paths.get(input);
+
+            // Only walk a directory if asked to, otherwise skip it
+            if (Files.isDirectory(path)) {
+                if (!recursive) {
+                    out.println(input + " is a directory");
+                    continue;
+                }
+
+                try (java.util.stream.Stream<Path> walk = Files.walk(path)) {
+                    walk.filter(Files::isRegularFile)
+                        .map(Path::toString)
+                        .sorted()
+                        .forEach(files::add);
+                }
+                catch (IOException | UncheckedIOException e) {
+                    out.println("Problem reading the directory " + input);
+                }
+            }
+            else {
+                files.add(input);
+            }
+        }
+
+        return files;
+    }
+
+    /**
+     * Scans every file and prints the matches
+     * Each file is streamed while it is matched and holds its open file
+     * permit until it is finished. Its output goes to the printer in chunks,
+     * and a file ahead of the one being printed waits once a few chunks are
+     * queued, so memory stays bounded however large the files are
+     * @param files the files from collectFiles
+     * @param out where the matches are printed
+     */
+    public void scan(List<String> files, PrintStream out) {
+        // Only name the file in front of each match if there is more than one
+        boolean showNames = files.size() > 1 || this.recursive;
+
+        Semaphore openFiles = new Semaphore(this.maxOpenFiles);
+        ExecutorService io = newIoExecutor();
+        ExecutorService cpu = Executors.newFixedThreadPool(this.workers, daemonThreads());
+
+        // Only keep a limited number of files in flight. The workers take the
+        // files in order, so the one being printed is always being matched or done
+        int window = Math.max(this.workers, this.maxOpenFiles) * 2;
+        ArrayDeque<FileOutput> pending = new ArrayDeque<FileOutput>();
+
+        try {
+            for (String file : files) {
+                String prefix = showNames ? file + ": " : "";
+
+                FileOutput output = new FileOutput();
+                cpu.execute(() -> matchFile(file, openFiles, io, output, prefix));
+                pending.add(output);
+
+                // Print the oldest file once the window is full
+                if (pending.size() >= window) {
+                    pending.removeFirst().printTo(out);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                pending.removeFirst().printTo(out);
+            }
+        }
+        finally {
+            io.shutdownNow();
+            cpu.shutdownNow();
+        }
+    }
+
+    /**
+     * Matches every line of a file while holding one of the open file permits
+     * Compressed files are inflated on the I/O executor while they are matched
+     * @param file the file to be read
+     * @param openFiles the permits for open files
+     * @param io the executor that decompresses the file
+     * @param output where the output of the file goes, it is closed at the end
+     * @param prefix printed before every match
+     */
+    private void matchFile(String file, Semaphore openFiles, ExecutorService io, FileOutput output, String prefix) {
+        PrintStream out = new PrintStream(output);
+
+        try {
+            if (!new File(file).exists()) {
+                out.println(prefix + "Input file does not exist");
+                return;
+            }
+
+            openFiles.acquireUninterruptibly();
+            try (InputStream in = open(Paths.get(file), io)) {
+                scan(in, out, prefix);
+            }
+            catch (IOException | UncheckedIOException e) {
+                out.println(prefix + "Problem reading the file");
+            }
+            finally {
+                openFiles.release();
+            }
+        }
+        finally {
+            out.flush();
+            output.close();
+        }
+    }
+
+    /**
+     * @param path a file
+     * @param io the executor that decompresses the file
+     * @return the bytes of the file, decompressed if it is compressed
+     * @throws IOException if the file cannot be opened
+     */
+    private static InputStream open(Path path, ExecutorService io) throws IOException {
+        String compression = CompressedInput.compression(path);
+        if (compression == null) {
+            return Files.newInputStream(path);
+        }
+
+        // The permit is given back by matchFile once the whole file is matched
+        return CompressedInput.openPipelined(path, compression, io, () -> { });
+    }
+
+    /**
+     * Matches every line of a stream on the calling thread, the matches are
+     * printed as they are found
+     * @param in the bytes to be matched, it is not closed
+     * @param out where the matches are printed
+     * @param prefix printed before every match
+     * @throws IOException if the stream fails
+     */
+    public void scan(InputStream in, PrintStream out, String prefix) throws IOException {
+        if (this.lineScanner != null) {
+            this.lineScanner.scan(in, out, prefix);
+        }
+        else {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            if (this.nfa != null && this.find) {
+                this.nfa.performSearch(reader, out, prefix);
+            }
+            else if (this.nfa != null) {
+                this.nfa.performRegex(reader, out, prefix);
+            }
+            else if (this.finder != null) {
+                this.finder.performSearch(reader, out, prefix);
+            }
+            else {
+                this.pattern.matcher().performRegex(reader, out, prefix);
+            }
+        }
+    }
+
+    /**
+     * The output of one file on its way to the printer
+     * It is kept in chunks of a fixed size and only a few chunks can wait to
+     * be printed, then the worker writing them waits for the printer
+     */
+    private static final class FileOutput extends OutputStream {
+        private static final int CHUNK_SIZE = 64 * 1024;
+        private static final byte[] END = new byte[0];
+
+        private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<byte[]>(4);
+        private byte[] chunk = new byte[CHUNK_SIZE];
+        private int length = 0;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (this.length == this.chunk.length) {
+                send();
+            }
+            this.chunk[this.length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int count) throws IOException {
+            while (count > 0) {
+                if (this.length == this.chunk.length) {
+                    send();
+                }
+                int n = Math.min(count, this.chunk.length - this.length);
+                System.arraycopy(bytes, offset, this.chunk, this.length, n);
+                this.length += n;
+                offset += n;
+                count -= n;
+            }
+        }
+
+        /**
+         * Passes the full chunk to the printer and starts a new one
+         * @throws IOException if the thread is interrupted while it waits
+         */
+        private void send() throws IOException {
+            put(this.chunk);
+            this.chunk = new byte[CHUNK_SIZE];
+            this.length = 0;
+        }
+
+        /**
+         * @param bytes a chunk for the printer
+         * @throws IOException if the thread is interrupted while it waits
+         */
+        private void put(byte[] bytes) throws IOException {
+            try {
+                this.chunks.put(bytes);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * Passes what is left to the printer and tells it the file is finished
+         */
+        @Override
+        public void close() {
+            try {
+                if (this.length > 0) {
+                    put(Arrays.copyOf(this.chunk, this.length));
+                }
+                put(END);
+            }
+            catch (IOException e) {
+                // Only an interrupt gets here, and then nothing more is printed
+            }
+        }
+
+        /**
+         * Prints the output of the file as it comes until the file is finished
+         * @param out where it is printed
+         */
+        void printTo(PrintStream out) {
+            try {
+                byte[] bytes;
+                while ((bytes = this.chunks.take()) != END) {
+                    out.write(bytes, 0, bytes.length);
+                }
+                out.flush();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Virtual threads are used for the I/O when the JVM has them, otherwise
+     * a cached pool is used since the number of reads is already bounded
+     * @return the executor for reading files
+     */
+    private static ExecutorService newIoExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(daemonThreads());
+        }
+    }
+
+    /**
+     * @return a thread factory that does not keep the JVM alive
+     */
+    static ThreadFactory daemonThreads() {
+        return r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
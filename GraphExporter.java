@@ -0,0 +1,383 @@
+/*
+ * Write NFAs and DFAs out as graphs
+ */
+
+
+package graphex;
+
+import java.util.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+
+/**
+ * Streams a NFA or DFA to a dot file or to JSON
+ * Parallel edges between two states are merged into one edge with a range
+ * label such as a-z, edges to the dead state are left out, and only the
+ * first maxStates states in breadth first order from the start are written
+ * with every other state drawn as a single "..." node
+ */
+class GraphExporter {
+    /** The label used by the NFA for epsilon transitions */
+    private static final String EPSILON = "epsilon";
+
+    /** The most states written unless another limit is given */
+    public static final int DEFAULT_MAX_STATES = 10000;
+
+    private int maxStates;
+
+    /**
+     * Constructor for GraphExporter
+     * @param maxStates the most states that are written
+     */
+    public GraphExporter(int maxStates) {
+        this.maxStates = Math.max(1, maxStates);
+    }
+
+    /**
+     * The states and edges of a NFA or DFA
+     */
+    private interface Graph {
+        /**
+         * @return the start state
+         */
+        int start();
+
+        /**
+         * @param state a state
+         * @return true if the state accepts
+         */
+        boolean accepts(int state);
+
+        /**
+         * Gets the edges from a state merged by target
+         * @param state a state
+         * @return the labels of the edges for each target state in order
+         */
+        SortedMap<Integer, List<String>> edges(int state);
+    }
+
+    /**
+     * @param nfa a NFA
+     * @return the graph of the NFA
+     */
+    private static Graph graphOf(NFA nfa) {
+        return new Graph() {
+            public int start() {
+                return nfa.getStartState();
+            }
+
+            public boolean accepts(int state) {
+                return state == nfa.getAcceptState();
+            }
+
+            public SortedMap<Integer, List<String>> edges(int state) {
+                SortedMap<Integer, List<String>> edges = new TreeMap<Integer, List<String>>();
+                if (state < nfa.getDeltaTransition().size()) {
+                    for (Transition t : nfa.getDeltaTransition().get(state)) {
+                        edges.computeIfAbsent(t.getTarget(), k -> new ArrayList<String>()).add(t.getTransition());
+                    }
+                }
+                return edges;
+            }
+        };
+    }
+
+    /**
+     * @param dfa a DFA
+     * @return the graph of the DFA without its null transitions
+     */
+    private static Graph graphOf(DFA dfa) {
+        Map<Integer, Map<String, Integer>> delta = dfa.getDeltaTranstions();
+        Set<Integer> accept = dfa.getAcceptStates();
+
+        return new Graph() {
+            public int start() {
+                return dfa.getStart();
+            }
+
+            public boolean accepts(int state) {
+                return accept.contains(state);
+            }
+
+            public SortedMap<Integer, List<String>> edges(int state) {
+                SortedMap<Integer, List<String>> edges = new TreeMap<Integer, List<String>>();
+                Map<String, Integer> stateTransitions = delta.get(state);
+                if (stateTransitions != null) {
+                    for (Map.Entry<String, Integer> t : stateTransitions.entrySet()) {
+                        if (t.getValue() != null) {
+                            edges.computeIfAbsent(t.getValue(), k -> new ArrayList<String>()).add(t.getKey());
+                        }
+                    }
+                }
+                return edges;
+            }
+        };
+    }
+
+    /**
+     * Writes the dot file for a NFA
+     * @param nfa the NFA
+     * @param file the file to be output to
+     * @throws IOException if the file cannot be written
+     */
+    public void writeDot(NFA nfa, String file) throws IOException {
+        writeDot(graphOf(nfa), "NFA", file);
+    }
+
+    /**
+     * Writes the dot file for a DFA
+     * @param dfa the DFA
+     * @param file the file to be output to
+     * @throws IOException if the file cannot be written
+     */
+    public void writeDot(DFA dfa, String file) throws IOException {
+        writeDot(graphOf(dfa), "DFA", file);
+    }
+
+    /**
+     * Writes the JSON adjacency list for a NFA
+     * @param nfa the NFA
+     * @param file the file to be output to
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(NFA nfa, String file) throws IOException {
+        writeJson(graphOf(nfa), "NFA", file);
+    }
+
+    /**
+     * Writes the JSON adjacency list for a DFA
+     * @param dfa the DFA
+     * @param file the file to be output to
+     * @throws IOException if the file cannot be written
+     */
+    public void writeJson(DFA dfa, String file) throws IOException {
+        writeJson(graphOf(dfa), "DFA", file);
+    }
+
+    /**
+     * Gets the states to be written in breadth first order from the start
+     * @param graph the graph
+     * @return the states, no more than maxStates of them
+     */
+    private List<Integer> statesToWrite(Graph graph) {
+        List<Integer> order = new ArrayList<Integer>();
+        Set<Integer> seen = new HashSet<Integer>();
+
+        order.add(graph.start());
+        seen.add(graph.start());
+
+        for (int i = 0; i < order.size() && order.size() < this.maxStates; i++) {
+            for (int target : graph.edges(order.get(i)).keySet()) {
+                if (order.size() < this.maxStates && seen.add(target)) {
+                    order.add(target);
+                }
+            }
+        }
+
+        return order;
+    }
+
+    /**
+     * Streams the dot file for a graph
+     * @param graph the graph
+     * @param name the name of the graph
+     * @param file the file to be output to
+     * @throws IOException if the file cannot be written
+     */
+    private void writeDot(Graph graph, String name, String file) throws IOException {
+        List<Integer> states = statesToWrite(graph);
+        Set<Integer> written = new HashSet<Integer>(states);
+        boolean truncated = false;
+
+        try (Writer writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            // Header
+            writer.write("digraph " + name + " {\n");
+            writer.write("rankdir=LR;\n");
+            writer.write("node [shape = none]; \"\";\n");
+
+            // The accepting states
+            StringBuilder accepting = new StringBuilder();
+            for (int state : states) {
+                if (graph.accepts(state)) {
+                    accepting.append(accepting.length() == 0 ? "" : ", ").append("q").append(state);
+                }
+            }
+            if (accepting.length() > 0) {
+                writer.write("node [shape = doublecircle]; " + accepting + ";\n");
+            }
+
+            writer.write("node [shape = circle];\n");
+            writer.write("\"\" -> q" + graph.start() + ";\n");
+
+            // One edge for each pair of states, edges to states that were cut go to "..."
+            for (int state : states) {
+                for (Map.Entry<Integer, List<String>> edge : graph.edges(state).entrySet()) {
+                    String target = "q" + edge.getKey();
+                    if (!written.contains(edge.getKey())) {
+                        target = "\"...\"";
+                        truncated = true;
+                    }
+                    writer.write("q" + state + " -> " + target + " [ label = " + quote(label(edge.getValue())) + " ];\n");
+                }
+            }
+
+            if (truncated) {
+                writer.write("\"...\" [shape = plaintext];\n");
+            }
+
+            writer.write("}\n");
+        }
+    }
+
+    /**
+     * Streams the JSON adjacency list for a graph
+     * @param graph the graph
+     * @param name the kind of graph
+     * @param file the file to be output to
+     * @throws IOException if the file cannot be written
+     */
+    private void writeJson(Graph graph, String name, String file) throws IOException {
+        List<Integer> states = statesToWrite(graph);
+        Set<Integer> written = new HashSet<Integer>(states);
+        boolean truncated = false;
+
+        try (Writer writer = Files.newBufferedWriter(Paths.get(file), StandardCharsets.UTF_8)) {
+            writer.write("{\"type\":" + quote(name) + ",\"start\":" + graph.start() + ",\"accept\":[");
+
+            boolean first = true;
+            for (int state : states) {
+                if (graph.accepts(state)) {
+                    writer.write((first ? "" : ",") + state);
+                    first = false;
+                }
+            }
+
+            writer.write("],\"states\":{");
+
+            // Each state lists its targets and the merged label to reach them
+            for (int i = 0; i < states.size(); i++) {
+                int state = states.get(i);
+                writer.write((i == 0 ? "" : ",") + "\n\"" + state + "\":[");
+
+                boolean firstEdge = true;
+                for (Map.Entry<Integer, List<String>> edge : graph.edges(state).entrySet()) {
+                    if (!written.contains(edge.getKey())) {
+                        truncated = true;
+                        continue;
+                    }
+                    writer.write((firstEdge ? "" : ",") + "{\"to\":" + edge.getKey()
+                            + ",\"on\":" + quote(label(edge.getValue())) + "}");
+                    firstEdge = false;
+                }
+
+                writer.write("]");
+            }
+
+            writer.write("},\n\"truncated\":" + truncated + "}\n");
+        }
+    }
+
+    /**
+     * Merges the labels of parallel edges, runs of three or more characters
+     * become a range such as a-z. A comma, dash or backslash that is a
+     * letter is written with a backslash before it so it is not read as part
+     * of the list or a range
+     * @param labels the labels of the edges
+     * @return the merged label
+     */
+    static String label(List<String> labels) {
+        TreeSet<Character> letters = new TreeSet<Character>();
+        boolean epsilon = false;
+
+        for (String l : labels) {
+            if (l.equals(EPSILON)) {
+                epsilon = true;
+            }
+            else {
+                for (int i = 0; i < l.length(); i++) {
+                    letters.add(l.charAt(i));
+                }
+            }
+        }
+
+        StringBuilder output = new StringBuilder();
+        if (epsilon) {
+            output.append(EPSILON);
+        }
+
+        Iterator<Character> it = letters.iterator();
+        char first = 0;
+        char last = 0;
+        boolean open = false;
+
+        while (it.hasNext() || open) {
+            char c = 0;
+            boolean more = it.hasNext();
+            if (more) {
+                c = it.next();
+            }
+
+            // Extend the current run if the next character follows it
+            if (open && more && c == last + 1) {
+                last = c;
+                continue;
+            }
+
+            // Otherwise write the finished run
+            if (open) {
+                if (output.length() > 0) {
+                    output.append(',');
+                }
+                appendLetter(output, first);
+                if (last - first >= 2) {
+                    appendLetter(output.append('-'), last);
+                }
+                else if (last != first) {
+                    appendLetter(output.append(','), last);
+                }
+            }
+
+            first = c;
+            last = c;
+            open = more;
+        }
+
+        return output.toString();
+    }
+
+    /**
+     * @param output the label being written
+     * @param c a letter of the label
+     */
+    private static void appendLetter(StringBuilder output, char c) {
+        if (c == ',' || c == '-' || c == '\\') {
+            output.append('\\');
+        }
+        output.append(c);
+    }
+
+    /**
+     * @param s a string
+     * @return the string in double quotes with quotes, backslashes and control characters escaped
+     */
+    static String quote(String s) {
+        StringBuilder output = new StringBuilder(s.length() + 2);
+        output.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                output.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                output.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                output.append(c);
+            }
+        }
+        output.append('"');
+        return output.toString();
+    }
+}
@@ -16,6 +16,7 @@ import java.io.*;
  * Parse the regular expression for correctness
  */
 class RegexParser {
+    private final String regex;
     private String input;
     private Stack<Regex> stack;
     private int parentheses;
@@ -25,6 +26,7 @@ class RegexParser {
      * @param regex the string representation of the regular expression 
      */
     public RegexParser(String regex) {
+        this.regex = regex;
         this.input = regex;
         this.stack = new Stack<Regex>();
         this.parentheses = 0;
@@ -33,8 +35,26 @@ class RegexParser {
     /**
      * Parses and builds regular expressions
      * @return the total regular expression
+     * @throws RegexSyntaxException if the regular expression is not valid
      */
     public Regex parse() { 
+        long start = GraphexStats.start();
+        
+        try {
+            return parseAll(start);
+        }
+        // A star, union or end with nothing before it has nothing to pop
+        catch (EmptyStackException e) {
+            throw error("Missing regular expression");
+        }
+    }
+    
+    /**
+     * Parses the whole of the regular expression
+     * @param start when parsing started
+     * @return the total regular expression
+     */
+    private Regex parseAll(long start) {
         // While there are still characters in the string
         while (moreToParse()) {
             // If it is a left parentheses consume it and add to the parentheses tracker
@@ -65,8 +85,7 @@ class RegexParser {
                 
                 // Do not allow double star
                 if (peekAtString() == '*') {
-                    System.out.println("Invalid regex");
-                    System.exit(0);
+                    throw error("Double star");
                 }
                 
                 Regex star = this.stack.pop();
@@ -79,8 +98,7 @@ class RegexParser {
                 
                 // Do not allow double union or union star
                 if (peekAtString() == '|' || peekAtString() == '*') {
-                    System.out.println("Invalid regex");
-                    System.exit(0);
+                    throw error("Union followed by " + peekAtString());
                 }
                 
                 Regex part1 = this.stack.pop();
@@ -108,10 +126,11 @@ class RegexParser {
         
         // If the parentheses do not match fail
         if (this.parentheses != 0) {
-            System.out.println("Invalid regex");
-            System.exit(0);
+            throw error("Unbalanced parentheses");
         }
         
+        GraphexStats.parsed(start);
+        
         return this.stack.pop();
     }
     
@@ -136,8 +155,7 @@ class RegexParser {
                 consume('*');
                 
                 if (peekAtString() == '*') {
-                    System.out.println("Invalid regex");
-                    System.exit(0);
+                    throw error("Double star");
                 }
                 
                 Regex star = this.stack.pop();
@@ -149,8 +167,7 @@ class RegexParser {
                 consume('|');
                 
                 if (peekAtString() == '|' || peekAtString() == '*') {
-                    System.out.println("Invalid regex");
-                    System.exit(0);
+                    throw error("Union followed by " + peekAtString());
                 }
                 
                 Regex part1 = this.stack.pop();
@@ -189,11 +206,18 @@ class RegexParser {
             this.input = this.input.substring(1);
         }
         else {
-            System.out.println("Invalid regular expression");
-            System.exit(0);
+            throw error("Expected " + c);
         }
     }
     
+    /**
+     * @param description what is wrong
+     * @return the error for the current position in the regular expression
+     */
+    private RegexSyntaxException error(String description) {
+        return new RegexSyntaxException(description, this.regex, this.regex.length() - this.input.length());
+    }
+    
     /**
      * Gets the next character then removes it from the string
      * @return the next character in the string
@@ -215,10 +239,16 @@ class RegexParser {
 
 /**
  * Regular expression abstract class
- * Regular expressions can be symbols, union, concatenation, or star
+ * Regular expressions can be symbols, union, concatenation, or star, and the
+ * optimizer also makes character classes and the empty string
  */
 abstract class Regex {
     abstract public NFA createNFA(StateNumber states);
+    
+    /**
+     * @return the regular expression that matches every string of this one backwards
+     */
+    abstract public Regex reverse();
 }
 
 /**
@@ -245,10 +275,35 @@ class Symbol extends Regex {
         int startState = states.getNextStateNumber();
         int acceptState = states.getNextStateNumber();
         
-        NFA nfa = new NFA(startState, acceptState);
+        NFA nfa = new NFA(startState, acceptState, states);
         nfa.addDeltaTransition(startState, this.symbol, acceptState);
         return nfa;
     }
+    
+    /**
+     * @return the symbol since it is the same backwards
+     */
+    @Override
+    public Regex reverse() {
+        return this;
+    }
+    
+    /**
+     * @return the character
+     */
+    public String getSymbol() {
+        return this.symbol;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Symbol && ((Symbol) o).symbol.equals(this.symbol);
+    }
+    
+    @Override
+    public int hashCode() {
+        return this.symbol.hashCode();
+    }
 }
 
 /**
@@ -279,19 +334,12 @@ class Concatenation extends Regex {
         NFA firstNFA = this.firstRegex.createNFA(states);
         NFA secondNFA = this.secondRegex.createNFA(states);
         
-        NFA nfa = new NFA(firstNFA.getStartState(), secondNFA.getAcceptState());
+        NFA nfa = new NFA(firstNFA.getStartState(), secondNFA.getAcceptState(), states);
         
-        // Add the delta transitions from the NFA of first regular expression 
-        // to the one being created
-        for (int i = 0; i < firstNFA.getDeltaTransition().size(); i++) {
-            nfa.addDeltaTransition(i, firstNFA.getDeltaTransition().get(i));
-        }
-        
-        // Add the delta transitions from the NFA of second regular expression 
-        // to the one being created
-        for (int i = 0; i < secondNFA.getDeltaTransition().size(); i++) {
-            nfa.addDeltaTransition(i, secondNFA.getDeltaTransition().get(i));
-        }
+        // Add the delta transitions from the NFAs of the first and second
+        // regular expressions to the one being created
+        nfa.addDeltaTransitions(firstNFA);
+        nfa.addDeltaTransitions(secondNFA);
         
         // Add an epsilon from the accept state of the first NFA to the start
         // state of the second NFA
@@ -300,6 +348,39 @@ class Concatenation extends Regex {
         
         return nfa;
     }
+    
+    /**
+     * @return the reverse of the second regular expression followed by the reverse of the first
+     */
+    @Override
+    public Regex reverse() {
+        return new Concatenation(this.secondRegex.reverse(), this.firstRegex.reverse());
+    }
+    
+    /**
+     * @return the first regular expression
+     */
+    public Regex getFirst() {
+        return this.firstRegex;
+    }
+    
+    /**
+     * @return the second regular expression
+     */
+    public Regex getSecond() {
+        return this.secondRegex;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Concatenation && ((Concatenation) o).firstRegex.equals(this.firstRegex)
+                && ((Concatenation) o).secondRegex.equals(this.secondRegex);
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * this.firstRegex.hashCode() + this.secondRegex.hashCode();
+    }
 }
 
 /**
@@ -332,19 +413,12 @@ class Union extends Regex {
         int startState = states.getNextStateNumber();
         int acceptState = states.getNextStateNumber();
         
-        NFA nfa = new NFA(startState, acceptState);
-        
-        // Add the delta transitions from the NFA of first regular expression 
-        // to the one being created
-        for (int i = 0; i < firstNFA.getDeltaTransition().size(); i++) {
-            nfa.addDeltaTransition(i, firstNFA.getDeltaTransition().get(i));
-        }
+        NFA nfa = new NFA(startState, acceptState, states);
         
-        // Add the delta transitions from the NFA of second regular expression 
-        // to the one being created
-        for (int i = 0; i < secondNFA.getDeltaTransition().size(); i++) {
-            nfa.addDeltaTransition(i, secondNFA.getDeltaTransition().get(i));
-        }
+        // Add the delta transitions from the NFAs of the first and second
+        // regular expressions to the one being created
+        nfa.addDeltaTransitions(firstNFA);
+        nfa.addDeltaTransitions(secondNFA);
         
         // Add a transition from the start state of the NFA being created
         // to the start state of the first NFA and the second NFA
@@ -362,6 +436,39 @@ class Union extends Regex {
         
         return nfa;
     }
+    
+    /**
+     * @return the union of the reverse of both regular expressions
+     */
+    @Override
+    public Regex reverse() {
+        return new Union(this.firstRegex.reverse(), this.secondRegex.reverse());
+    }
+    
+    /**
+     * @return the first regular expression
+     */
+    public Regex getFirst() {
+        return this.firstRegex;
+    }
+    
+    /**
+     * @return the second regular expression
+     */
+    public Regex getSecond() {
+        return this.secondRegex;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Union && ((Union) o).firstRegex.equals(this.firstRegex)
+                && ((Union) o).secondRegex.equals(this.secondRegex);
+    }
+    
+    @Override
+    public int hashCode() {
+        return 37 * this.firstRegex.hashCode() + this.secondRegex.hashCode();
+    }
 }
 
 /**
@@ -389,13 +496,11 @@ class Star extends Regex {
         
         int startAndAcceptState = states.getNextStateNumber();
         
-        NFA nfa = new NFA(startAndAcceptState, startAndAcceptState);
+        NFA nfa = new NFA(startAndAcceptState, startAndAcceptState, states);
         
         // Add all of the transitions from the regular expression NFA to the one
         // being created
-        for (int i = 0; i < firstNFA.getDeltaTransition().size(); i++) {
-            nfa.addDeltaTransition(i, firstNFA.getDeltaTransition().get(i));
-        }
+        nfa.addDeltaTransitions(firstNFA);
         
         // Add a transistion from the start state to the start state of the
         // NFA
@@ -409,6 +514,126 @@ class Star extends Regex {
         
         return nfa;
     }
+    
+    /**
+     * @return the star of the reverse of the regular expression
+     */
+    @Override
+    public Regex reverse() {
+        return new Star(this.regex.reverse());
+    }
+    
+    /**
+     * @return the regular expression that is repeated
+     */
+    public Regex getRegex() {
+        return this.regex;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Star && ((Star) o).regex.equals(this.regex);
+    }
+    
+    @Override
+    public int hashCode() {
+        return 41 * this.regex.hashCode() + 1;
+    }
+}
+
+/**
+ * A regular expression that matches any one of a set of characters
+ */
+class CharClass extends Regex {
+    private String characters;
+    
+    /**
+     * Constructor for CharClass
+     * @param characters the characters, they are sorted and repeats are removed
+     */
+    public CharClass (Collection<Character> characters) {
+        StringBuilder sorted = new StringBuilder();
+        for (char c : new TreeSet<Character>(characters)) {
+            sorted.append(c);
+        }
+        this.characters = sorted.toString();
+    }
+    
+    /**
+     * Creates a NFA with a start and end state with a transition on each character
+     * @param states the current state number
+     * @return the NFA created
+     */
+    @Override
+    public NFA createNFA(StateNumber states) {
+        int startState = states.getNextStateNumber();
+        int acceptState = states.getNextStateNumber();
+        
+        NFA nfa = new NFA(startState, acceptState, states);
+        for (int i = 0; i < this.characters.length(); i++) {
+            nfa.addDeltaTransition(startState, "" + this.characters.charAt(i), acceptState);
+        }
+        return nfa;
+    }
+    
+    /**
+     * @return the class since it is the same backwards
+     */
+    @Override
+    public Regex reverse() {
+        return this;
+    }
+    
+    /**
+     * @return the characters in order
+     */
+    public String getCharacters() {
+        return this.characters;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof CharClass && ((CharClass) o).characters.equals(this.characters);
+    }
+    
+    @Override
+    public int hashCode() {
+        return 43 * this.characters.hashCode() + 2;
+    }
+}
+
+/**
+ * A regular expression that only matches the empty string
+ */
+class Epsilon extends Regex {
+    /**
+     * Creates a NFA of one state that is both the start and accept state
+     * @param states the current state number
+     * @return the NFA created
+     */
+    @Override
+    public NFA createNFA(StateNumber states) {
+        int state = states.getNextStateNumber();
+        return new NFA(state, state, states);
+    }
+    
+    /**
+     * @return the empty string since it is the same backwards
+     */
+    @Override
+    public Regex reverse() {
+        return this;
+    }
+    
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Epsilon;
+    }
+    
+    @Override
+    public int hashCode() {
+        return 3;
+    }
 }
 
 /**
@@ -460,6 +685,7 @@ class Transition {
  */
 class StateNumber {
     private int stateNumber = 0;
+    private ArrayList<List<Transition>> transitions = new ArrayList<List<Transition>>();
     
     /**
      * @return the next state number
@@ -467,6 +693,21 @@ class StateNumber {
     public int getNextStateNumber() {
         return this.stateNumber++;
     }
+    
+    /**
+     * @return the number of states made so far
+     */
+    public int getStateCount() {
+        return this.stateNumber;
+    }
+    
+    /**
+     * @return the transitions shared by every NFA numbered by this, their
+     *         states never overlap so they can all be kept in one list
+     */
+    public ArrayList<List<Transition>> getTransitions() {
+        return this.transitions;
+    }
 }
 
 /**
@@ -478,6 +719,10 @@ class NFA {
     private int startState;
     private int acceptState;
     private ArrayList<List<Transition>> deltaTransition;
+    
+    // The lowest state with transitions, the states of a NFA made from part of a
+    // regular expression are numbered one after another from it
+    private int lowestState = Integer.MAX_VALUE;
    
     /**
      * Constructor for NFA
@@ -500,6 +745,24 @@ class NFA {
         }
     }
     
+    /**
+     * Constructor for a NFA that is part of a regular expression
+     * The NFAs of every part share one list of transitions, so combining
+     * them does not copy anything
+     * @param startState integer start state
+     * @param acceptState integer accept state
+     * @param states the numbering the states came from
+     */
+    public NFA (int startState, int acceptState, StateNumber states) {
+        this.startState = startState;
+        this.acceptState = acceptState;
+        this.deltaTransition = states.getTransitions();
+        
+        for (int i = this.deltaTransition.size(); i <= Math.max(startState, acceptState); i++) {
+            this.deltaTransition.add(new LinkedList<Transition>());
+        }
+    }
+    
     /**
      * @return the start state
      */
@@ -530,14 +793,16 @@ class NFA {
     public void addDeltaTransition(int state1, String stateLabel, int state2) {
         List<Transition> state1Transition = new LinkedList<Transition>();
         
-        // If the state does not exist create states until it does
-        if (state1 >= this.deltaTransition.size())
+        // If either state does not exist create states until it does
+        int highest = Math.max(state1, state2);
+        if (highest >= this.deltaTransition.size())
         {
-            for (int i = this.deltaTransition.size(); i <= state1; i++)
+            for (int i = this.deltaTransition.size(); i <= highest; i++)
                 this.deltaTransition.add(new LinkedList<Transition>());
         }
         
         state1Transition = this.deltaTransition.get(state1);
+        this.lowestState = Math.min(this.lowestState, state1);
 
         
         // Then add a new transition to the linked list of transitions
@@ -549,21 +814,78 @@ class NFA {
      * @param transition a map of existing transitions
      */
     public void addDeltaTransition(int state, List<Transition> transition) {
-        // If a transition is not already in the NFA create states until it is
-        // then add the transition to it
-        if (!this.deltaTransition.contains(transition)) {
-            for (int i = this.deltaTransition.size(); i <= state; i++)
-                this.deltaTransition.add(new LinkedList<Transition>());
-            
-            this.deltaTransition.add(state, transition);
+        // If the state does not exist yet create states until it does
+        for (int i = this.deltaTransition.size(); i <= state; i++)
+            this.deltaTransition.add(new LinkedList<Transition>());
+        
+        // Then use the transitions unless they are already there
+        List<Transition> existing = this.deltaTransition.get(state);
+        if (existing != transition && !transition.isEmpty()) {
+            if (existing.isEmpty()) {
+                this.deltaTransition.set(state, transition);
+            }
+            else {
+                existing.addAll(transition);
+            }
+        }
+        
+        this.lowestState = Math.min(this.lowestState, state);
+    }
+    
+    /**
+     * Adds every transition of a NFA made from part of the regular expression
+     * Only the states of the part are copied. If the part has more of them
+     * than this NFA its list is taken over and the states of this NFA are
+     * copied into it instead, so no state is copied more than a few times
+     * while building the NFA of a long regular expression
+     * @param part the NFA of the part, it must not be used afterwards
+     */
+    public void addDeltaTransitions(NFA part) {
+        // NFAs from the same numbering already share their transitions
+        if (part.deltaTransition == this.deltaTransition) {
+            this.lowestState = Math.min(this.lowestState, part.lowestState);
+            return;
+        }
+        
+        int own = this.lowestState == Integer.MAX_VALUE ? 0 : this.deltaTransition.size() - this.lowestState;
+        int theirs = part.lowestState == Integer.MAX_VALUE ? 0 : part.deltaTransition.size() - part.lowestState;
+        
+        ArrayList<List<Transition>> from = part.deltaTransition;
+        int fromState = part.lowestState;
+        
+        if (theirs > own) {
+            from = this.deltaTransition;
+            fromState = this.lowestState;
+            this.deltaTransition = part.deltaTransition;
+        }
+        
+        for (int i = fromState; i < from.size(); i++) {
+            if (!from.get(i).isEmpty()) {
+                addDeltaTransition(i, from.get(i));
+            }
         }
+        
+        // States without transitions, such as the accept state, still need a list
+        for (int i = this.deltaTransition.size(); i < from.size(); i++) {
+            this.deltaTransition.add(new LinkedList<Transition>());
+        }
+        
+        this.lowestState = Math.min(this.lowestState, part.lowestState);
     }
     
     /**
      * Converts the NFA to a DFA
      * @return a DFA
+     * @throws StateBudgetException if the DFA would be larger than the StateBudget
      */
     public DFA nfaToDFA() {
+        // Large NFAs can be turned into DFAs on more than one thread
+        if (ParallelDeterminizer.getThreads() > 1) {
+            return new ParallelDeterminizer(this, ParallelDeterminizer.getThreads()).run();
+        }
+        
+        long start = GraphexStats.start();
+        
         // First make all of the transitions for the DFA
         Map<Set<Integer>, Map<String, Set<Integer>>> dfaTransitions = DFATransitions();        
         
@@ -594,7 +916,11 @@ class NFA {
             }
         }
         
-        return new DFA(DFAStartState, DFAAccept, DFAIntegerToTransitions);
+        GraphexStats.determinized(start, setToIntegerStates.size());
+        
+        // The map gives the states in no useful order, so number them breadth first
+        DFA dfa = new DFA(DFAStartState, DFAAccept, DFAIntegerToTransitions);
+        return dfa.renumber(dfa.breadthFirstOrder());
         
     }
     
@@ -606,58 +932,74 @@ class NFA {
         // Create a set of all the sets reachable from the start state by removing epsilon transitions
         Set<Integer> setsFromStartState = resolveEpsilonClosure(Collections.singleton(this.startState));
         
-        // Create a list of states and add the intial sets to it
+        // Create a list of states and add the intial sets to it, each set is only added once when it is found
         LinkedList<Set<Integer>> stateList = new LinkedList<Set<Integer>>();
         stateList.add(setsFromStartState);
         
+        // Every set found so far, a closure equal to one of them is replaced by it so each set is only kept once
+        Map<Set<Integer>, Set<Integer>> found = new HashMap<Set<Integer>, Set<Integer>>();
+        found.put(setsFromStartState, setsFromStartState);
+        
         // Create the map
         Map<Set<Integer>, Map<String, Set<Integer>>> statesAndTransitions = new HashMap<Set<Integer>, Map<String, Set<Integer>>>();
         
+        // The NFA states held by all of the sets found and the transitions made, they are most of the memory used
+        long entries = setsFromStartState.size();
+        long transitions = 0;
+        
         // Go until there are no more states to be processed
         while (!stateList.isEmpty()) {
             // Get the first set of states
             Set<Integer> state = stateList.removeFirst();
             
-            // If the set is not already contained in the map add it otherwise continue to the next set
-            if (!statesAndTransitions.containsKey(state)) {
-                Map<String, Set<Integer>> stateTransitions = new HashMap<String, Set<Integer>>();
+            Map<String, Set<Integer>> stateTransitions = new HashMap<String, Set<Integer>>();
+            
+            // For all the states in the set and there transitions
+            for (int s : state) {
+                for (Transition t : this.deltaTransition.get(s)) {
                 
-                // For all the states in the set and there transitions
-                for (int s : state) {
-                    for (Transition t : this.deltaTransition.get(s)) {
-                    
-                        // As long as it is not an epsilon transition create a state of set to transition to
-                        if (!t.getTransition().equals("epsilon")) {
-                            Set<Integer> toState;
+                    // As long as it is not an epsilon transition create a state of set to transition to
+                    if (!t.getTransition().equals("epsilon")) {
+                        Set<Integer> toState;
 
-                            // If the map already contains the character to be transitioned on retrieve the set of integers
-                            if (stateTransitions.containsKey(t.getTransition())) {
-                                toState = stateTransitions.get(t.getTransition());
-                            }
-                            // Otherwise, create a new set and add it to the map
-                            else {
-                                toState = new HashSet<Integer>();
-                                stateTransitions.put(t.getTransition(), toState);
-                            }
-                            
-                            // Then add the current target to the set of states to transition to
-                            toState.add(t.getTarget());
+                        // If the map already contains the character to be transitioned on retrieve the set of integers
+                        if (stateTransitions.containsKey(t.getTransition())) {
+                            toState = stateTransitions.get(t.getTransition());
+                        }
+                        // Otherwise, create a new set and add it to the map
+                        else {
+                            toState = new HashSet<Integer>();
+                            stateTransitions.put(t.getTransition(), toState);
                         }
+                        
+                        // Then add the current target to the set of states to transition to
+                        toState.add(t.getTarget());
                     }
                 }
-                
-                HashMap<String, Set<Integer>> stateTransitionsClosed = new HashMap<String, Set<Integer>>();
-                
-                // Then remove all epsilon closures from the set of states in the map
-                for (Map.Entry<String, Set<Integer>> element : stateTransitions.entrySet()) {
-                    Set<Integer> close = resolveEpsilonClosure(element.getValue());
-                    stateTransitionsClosed.put(element.getKey(), close);
+            }
+            
+            HashMap<String, Set<Integer>> stateTransitionsClosed = new HashMap<String, Set<Integer>>();
+            
+            // Then remove all epsilon closures from the set of states in the map
+            for (Map.Entry<String, Set<Integer>> element : stateTransitions.entrySet()) {
+                Set<Integer> close = resolveEpsilonClosure(element.getValue());
+                Set<Integer> known = found.putIfAbsent(close, close);
+                if (known == null) {
                     stateList.add(close);
+                    entries += close.size();
                 }
-                
-                // Then add the current set of states and there transitions
-                statesAndTransitions.put(state, stateTransitionsClosed);
+                else {
+                    close = known;
+                }
+                stateTransitionsClosed.put(element.getKey(), close);
             }
+            
+            // Then add the current set of states and there transitions
+            statesAndTransitions.put(state, stateTransitionsClosed);
+            
+            // Give up before the DFA takes all of the memory
+            transitions += stateTransitionsClosed.size();
+            StateBudget.check(found.size(), entries, transitions);
         }
         
         return statesAndTransitions;
@@ -669,6 +1011,8 @@ class NFA {
      * @return the new set of states with no epsilon transitions
      */
     public Set<Integer> resolveEpsilonClosure(Set<Integer> states) {
+        GraphexStats.epsilonClosure();
+        
         // Get a list of the states in the set and declare a new set to be epsilon free
         LinkedList<Integer> stateList = new LinkedList<Integer>(states);
         Set<Integer> stateSet = new HashSet<Integer>(states);
@@ -722,34 +1066,8 @@ class NFA {
      * @param file the file to be output to
      */
     public void createDotFile(String file) {
-        File dotFile = new File(file);
-        
         try {
-            if (!dotFile.exists())
-                dotFile.createNewFile();
-            
-            // Use print writer for print line function
-            PrintWriter writer = new PrintWriter(new FileWriter(dotFile));
-           
-            // Write the header
-            writer.println("digraph NFA {");
-            writer.println("rankdir=LF;");
-            writer.println("node [shape = none]; \"\";");
-            writer.println("node [shape = doublecircle]; q" + this.acceptState + ";");
-            writer.println("node [shape = circle];");
-            writer.println("\"\" -> q" + this.startState + ";");
-            
-            // For each state write what it transitions to
-            for (int i = 0; i < this.deltaTransition.size(); i++) {
-                for (Transition t : this.deltaTransition.get(i)) {
-                    writer.println("q" + i + " -> q" + t.getTarget() + " [ label = " + t.getTransition() + " ];");
-                }
-            }
-            
-            writer.println("}");
-            
-            writer.flush();
-            writer.close();
+            new GraphExporter(GraphExporter.DEFAULT_MAX_STATES).writeDot(this, file);
         }
         catch (IOException e) {
             System.out.println("Problem writing or creating the file");
@@ -762,14 +1080,15 @@ class NFA {
      */
     @Override
     public String toString() {
-        String output = "NFA start = " + this.startState + " accept = " + this.acceptState
-                + "\n";
+        StringBuilder output = new StringBuilder();
+        output.append("NFA start = ").append(this.startState).append(" accept = ").append(this.acceptState)
+                .append("\n");
         
         for (int i = 0; i < this.deltaTransition.size(); i++) {
-            output += "" + i + " " + this.deltaTransition.get(i).toString() + "\n";
+            output.append(i).append(" ").append(this.deltaTransition.get(i)).append("\n");
         }
         
-        return output;
+        return output.toString();
     }
 }
 
@@ -801,55 +1120,381 @@ class DFA {
     }
     
     /**
-     * @return the set of accepting states
+     * @return the set of accepting states, it cannot be changed
      */
     public Set<Integer> getAcceptStates() {
-        return this.acceptStates;
+        return Collections.unmodifiableSet(this.acceptStates);
     }
     
     /**
-     * @return the transitions in the DFA
+     * @return the transitions in the DFA, they cannot be changed
      */
     public Map<Integer, Map<String, Integer>> getDeltaTranstions() {
-        return this.deltaTransitions;
+        return Collections.unmodifiableMap(this.deltaTransitions);
     }
     
     /**
-     * Add transitions to the null state for unused letter
-     * @param alphabet the alphabet used in the file
+     * Compiles the DFA into an immutable pattern that threads can share
+     * @return the compiled pattern
      */
-    public void transitionToNullState(int[] alphabet) {
+    public CompiledPattern compile() {
+        return new CompiledPattern(this);
+    }
+    
+    /**
+     * Gets the state that is transitioned to
+     * @param state the current state, or -1 for the dead state
+     * @param label the character
+     * @return the next state or -1 if there is no transition
+     */
+    private int target(int state, String label) {
+        if (state == -1) {
+            return -1;
+        }
+        
+        Map<String, Integer> stateTransitions = this.deltaTransitions.get(state);
+        Integer target = stateTransitions == null ? null : stateTransitions.get(label);
+        return target == null ? -1 : target;
+    }
+    
+    /**
+     * Creates the DFA that accepts the strings accepted by both DFAs
+     * @param other the second DFA
+     * @return the minimized intersection
+     * @throws StateBudgetException if the product would be larger than the StateBudget
+     */
+    public DFA intersect(DFA other) {
+        return product(other, true);
+    }
+    
+    /**
+     * Creates the DFA that accepts the strings accepted by this DFA but not
+     * by the other one
+     * @param other the DFA whose strings are taken away
+     * @return the minimized difference
+     * @throws StateBudgetException if the product would be larger than the StateBudget
+     */
+    public DFA difference(DFA other) {
+        return product(other, false);
+    }
+    
+    /**
+     * Builds the product of two DFAs
+     * Only the pairs of states that can be reached from the pair of start states
+     * are made, each pair is numbered in the order it is found. The product
+     * can have as many states as both DFAs multiplied, so it is held to the
+     * StateBudget
+     * @param other the second DFA
+     * @param intersection true for the intersection, false for the difference
+     * @return the minimized product
+     * @throws StateBudgetException if the product would be larger than the StateBudget
+     */
+    private DFA product(DFA other, boolean intersection) {
+        Map<Long, Integer> pairToState = new HashMap<Long, Integer>();
+        List<Long> pairs = new ArrayList<Long>();
         Map<Integer, Map<String, Integer>> newTransitions = new HashMap<Integer, Map<String, Integer>>();
+        Set<Integer> newAccept = new HashSet<Integer>();
         
-        for (Map.Entry<Integer, Map<String, Integer>> transition : this.deltaTransitions.entrySet()) {
-            Map<String, Integer> newNullTransition = new HashMap<String, Integer>();
+        long startPair = pair(this.startState, other.startState);
+        pairToState.put(startPair, 0);
+        pairs.add(startPair);
+        long transitions = 0;
+        
+        // Go through the pairs of states in the order they were found
+        for (int i = 0; i < pairs.size(); i++) {
+            int a = (int) (pairs.get(i) >> 32);
+            int b = (int) (long) pairs.get(i);
             
-            // For each state in the transition map, check to make sure that it has a transition on every character
-            for (int i = 0; i < alphabet.length; i++) {
-                // If state does not have a transition for the character add a null transition
-                if ((alphabet[i] != 0) && (!transition.getValue().containsKey("" + (char) i))) {
-                    newNullTransition.put("" + (char) i, null);
-                }
+            // The other DFA may already be in its dead state for a difference
+            boolean otherAccepts = b != -1 && other.acceptStates.contains(b);
+            if (intersection ? (this.acceptStates.contains(a) && otherAccepts)
+                    : (this.acceptStates.contains(a) && !otherAccepts)) {
+                newAccept.add(i);
             }
             
-            // Add the existing transitions
-            for (Map.Entry<String, Integer> t : transition.getValue().entrySet()) {
-                newNullTransition.put(t.getKey(), t.getValue());
+            Map<String, Integer> stateTransitions = new HashMap<String, Integer>();
+            Map<String, Integer> aTransitions = this.deltaTransitions.get(a);
+            
+            // This DFA has to have a transition in both products, so only its labels are tried
+            if (aTransitions != null) {
+                for (String label : new TreeSet<String>(aTransitions.keySet())) {
+                    int aTarget = target(a, label);
+                    int bTarget = other.target(b, label);
+                    
+                    if (aTarget == -1 || (intersection && bTarget == -1)) {
+                        continue;
+                    }
+                    
+                    long targetPair = pair(aTarget, bTarget);
+                    Integer targetState = pairToState.get(targetPair);
+                    if (targetState == null) {
+                        targetState = pairs.size();
+                        pairToState.put(targetPair, targetState);
+                        pairs.add(targetPair);
+                    }
+                    
+                    stateTransitions.put(label, targetState);
+                }
             }
             
-            // Put all of the transitions back in the map
-            newTransitions.put(transition.getKey(), newNullTransition);
+            newTransitions.put(i, stateTransitions);
+            
+            // Each pair is held like one NFA state in a set
+            transitions += stateTransitions.size();
+            StateBudget.check(pairs.size(), pairs.size(), transitions);
         }
         
-        this.deltaTransitions = newTransitions;
+        return new DFA(0, newAccept, newTransitions).minimize();
     }
     
     /**
-     * Performs the pattern matching on a file
-     * @param input the file for processing
+     * @param a a state of the first DFA
+     * @param b a state of the second DFA or -1
+     * @return both states in one long
      */
-    public void performRegexOnFile(String input) {
-        File f = new File(input);
+    private static long pair(int a, int b) {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+    
+    /**
+     * Creates the DFA that accepts every string of this one backwards
+     * Every transition is turned around in a NFA whose new start state has an
+     * epsilon transition to each accepting state, then it is made into a DFA
+     * @return the reversed DFA
+     */
+    public DFA reverse() {
+        Set<Integer> states = new HashSet<Integer>(this.deltaTransitions.keySet());
+        states.add(this.startState);
+        
+        // The new start state has the largest number so every state gets a list of transitions
+        int newStart = Collections.max(states) + 1;
+        NFA nfa = new NFA(newStart, this.startState);
+        
+        for (int state : this.acceptStates) {
+            nfa.addDeltaTransition(newStart, "epsilon", state);
+        }
+        
+        for (Map.Entry<Integer, Map<String, Integer>> element : this.deltaTransitions.entrySet()) {
+            for (Map.Entry<String, Integer> t : element.getValue().entrySet()) {
+                if (t.getValue() != null) {
+                    nfa.addDeltaTransition(t.getValue(), t.getKey(), element.getKey());
+                }
+            }
+        }
+        
+        return nfa.nfaToDFA();
+    }
+    
+    /**
+     * Gets the states in breadth first order from the start, the transitions
+     * of each state are followed in the order of their labels
+     * @return the states that can be reached from the start
+     */
+    public List<Integer> breadthFirstOrder() {
+        List<Integer> order = new ArrayList<Integer>();
+        Set<Integer> seen = new HashSet<Integer>();
+        order.add(this.startState);
+        seen.add(this.startState);
+        
+        for (int i = 0; i < order.size(); i++) {
+            Map<String, Integer> stateTransitions = this.deltaTransitions.get(order.get(i));
+            if (stateTransitions == null) {
+                continue;
+            }
+            for (String label : new TreeSet<String>(stateTransitions.keySet())) {
+                Integer target = stateTransitions.get(label);
+                if (target != null && seen.add(target)) {
+                    order.add(target);
+                }
+            }
+        }
+        
+        return order;
+    }
+    
+    /**
+     * Creates the same DFA with its states numbered in a new order
+     * The numbers a DFA is compiled with are its rows in the transition table,
+     * so states that are used one after the other are best numbered together
+     * @param order the states in their new order from 0, states left out are
+     *        numbered after them in the order of their old numbers
+     * @return the renumbered DFA
+     */
+    public DFA renumber(List<Integer> order) {
+        Set<Integer> states = new TreeSet<Integer>(this.deltaTransitions.keySet());
+        states.add(this.startState);
+        for (Map<String, Integer> stateTransitions : this.deltaTransitions.values()) {
+            for (Integer target : stateTransitions.values()) {
+                if (target != null) {
+                    states.add(target);
+                }
+            }
+        }
+        
+        Map<Integer, Integer> newNumber = new HashMap<Integer, Integer>();
+        for (int state : order) {
+            if (states.contains(state) && !newNumber.containsKey(state)) {
+                newNumber.put(state, newNumber.size());
+            }
+        }
+        for (int state : states) {
+            if (!newNumber.containsKey(state)) {
+                newNumber.put(state, newNumber.size());
+            }
+        }
+        
+        Map<Integer, Map<String, Integer>> newTransitions = new HashMap<Integer, Map<String, Integer>>();
+        for (Map.Entry<Integer, Map<String, Integer>> element : this.deltaTransitions.entrySet()) {
+            Map<String, Integer> stateTransitions = new HashMap<String, Integer>();
+            for (Map.Entry<String, Integer> t : element.getValue().entrySet()) {
+                stateTransitions.put(t.getKey(), t.getValue() == null ? null : newNumber.get(t.getValue()));
+            }
+            newTransitions.put(newNumber.get(element.getKey()), stateTransitions);
+        }
+        
+        Set<Integer> newAccept = new HashSet<Integer>();
+        for (int state : this.acceptStates) {
+            Integer n = newNumber.get(state);
+            if (n != null) {
+                newAccept.add(n);
+            }
+        }
+        
+        return new DFA(newNumber.get(this.startState), newAccept, newTransitions);
+    }
+    
+    /**
+     * Creates the smallest DFA that accepts the same strings
+     * States that cannot reach an accepting state are removed, then the rest are
+     * split into blocks until every state in a block goes to the same blocks
+     * @return the minimized DFA, numbered in breadth first order from the start
+     */
+    public DFA minimize() {
+        Set<Integer> states = new TreeSet<Integer>(this.deltaTransitions.keySet());
+        states.add(this.startState);
+        
+        Set<String> labels = new TreeSet<String>();
+        Map<Integer, List<Integer>> reverse = new HashMap<Integer, List<Integer>>();
+        for (int state : states) {
+            Map<String, Integer> stateTransitions = this.deltaTransitions.get(state);
+            if (stateTransitions == null) {
+                continue;
+            }
+            for (Map.Entry<String, Integer> t : stateTransitions.entrySet()) {
+                if (t.getValue() != null) {
+                    labels.add(t.getKey());
+                    reverse.computeIfAbsent(t.getValue(), k -> new ArrayList<Integer>()).add(state);
+                }
+            }
+        }
+        
+        // Find the states that can still reach an accepting state
+        Set<Integer> live = new HashSet<Integer>();
+        LinkedList<Integer> stateList = new LinkedList<Integer>();
+        for (int state : this.acceptStates) {
+            if (states.contains(state) && live.add(state)) {
+                stateList.add(state);
+            }
+        }
+        while (!stateList.isEmpty()) {
+            int s = stateList.removeFirst();
+            for (int from : reverse.getOrDefault(s, Collections.<Integer>emptyList())) {
+                if (live.add(from)) {
+                    stateList.add(from);
+                }
+            }
+        }
+        
+        // If nothing can be accepted the DFA is just a start state
+        if (!live.contains(this.startState)) {
+            Map<Integer, Map<String, Integer>> empty = new HashMap<Integer, Map<String, Integer>>();
+            empty.put(0, new HashMap<String, Integer>());
+            return new DFA(0, new HashSet<Integer>(), empty);
+        }
+        
+        // Start with the accepting and the other states then split the blocks
+        // until the number of blocks stops changing
+        Map<Integer, Integer> block = new HashMap<Integer, Integer>();
+        for (int state : live) {
+            block.put(state, this.acceptStates.contains(state) ? 1 : 0);
+        }
+        
+        int blocks = 0;
+        while (true) {
+            Map<List<Integer>, Integer> signatures = new HashMap<List<Integer>, Integer>();
+            Map<Integer, Integer> newBlock = new HashMap<Integer, Integer>();
+            
+            for (int state : states) {
+                if (!live.contains(state)) {
+                    continue;
+                }
+                
+                List<Integer> signature = new ArrayList<Integer>(labels.size() + 1);
+                signature.add(block.get(state));
+                for (String label : labels) {
+                    int target = target(state, label);
+                    signature.add(live.contains(target) ? block.get(target) : -1);
+                }
+                
+                Integer b = signatures.get(signature);
+                if (b == null) {
+                    b = signatures.size();
+                    signatures.put(signature, b);
+                }
+                newBlock.put(state, b);
+            }
+            
+            block = newBlock;
+            if (signatures.size() == blocks) {
+                break;
+            }
+            blocks = signatures.size();
+        }
+        
+        // Number the blocks in breadth first order from the start
+        Map<Integer, Integer> blockToState = new HashMap<Integer, Integer>();
+        List<Integer> order = new ArrayList<Integer>();
+        
+        blockToState.put(block.get(this.startState), 0);
+        order.add(this.startState);
+        
+        Map<Integer, Map<String, Integer>> newTransitions = new HashMap<Integer, Map<String, Integer>>();
+        Set<Integer> newAccept = new HashSet<Integer>();
+        
+        for (int i = 0; i < order.size(); i++) {
+            int state = order.get(i);
+            Map<String, Integer> stateTransitions = new HashMap<String, Integer>();
+            
+            for (String label : labels) {
+                int target = target(state, label);
+                if (!live.contains(target)) {
+                    continue;
+                }
+                
+                Integer newTarget = blockToState.get(block.get(target));
+                if (newTarget == null) {
+                    newTarget = order.size();
+                    blockToState.put(block.get(target), newTarget);
+                    order.add(target);
+                }
+                stateTransitions.put(label, newTarget);
+            }
+            
+            newTransitions.put(i, stateTransitions);
+            if (this.acceptStates.contains(state)) {
+                newAccept.add(i);
+            }
+        }
+        
+        return new DFA(0, newAccept, newTransitions);
+    }
+    
+    /**
+     * Performs the pattern matching on a file
+     * @param input the file for processing
+     */
+    public void performRegexOnFile(String input) {
+        File f = new File(input);
         
         if (!f.exists()) {
             System.out.println("Input file does not exist");
@@ -859,57 +1504,69 @@ class DFA {
  
         try {
 
-            String currentLine;   
-
             BufferedReader reader = new BufferedReader(new FileReader(input));
+
+            performRegex(reader, System.out, "");
+
+            reader.close();
+
+        } catch (IOException e) {
+                System.out.println("Problem reading the file");
+        }
+    }
+
+    /**
+     * Performs the pattern matching on every line from a reader
+     * The DFA is only read so one DFA can be used by many threads at once
+     * @param reader the lines to be processed
+     * @param out where the matches are printed
+     * @param prefix printed before every match, such as the file name
+     * @throws IOException if the reader fails
+     */
+    public void performRegex(BufferedReader reader, PrintStream out, String prefix) throws IOException {
+        String currentLine;
+
+        // Only process line by line
+        while ((currentLine = reader.readLine()) != null) {
+            // Start at the start state
+            int currentState = this.startState;
+            // Get the transitions for the start state
+            Map<String, Integer> tempState = this.deltaTransitions.get(currentState);
+            int newState = -1;
+            String match = "";
             
-            // Only process line by line
-            while ((currentLine = reader.readLine()) != null) {
-                // Start at the start state
-                int currentState = this.startState;
-                // Get the transitions for the start state
-                Map<String, Integer> tempState = this.deltaTransitions.get(currentState);
-                int newState = -1;
-                String match = "";
+            // Process each character in the string
+            for (int i = 0; i < currentLine.length(); i++) {
+                String currentLetter ="" + currentLine.charAt(i);
                 
-                // Process each character in the string
-                for (int i = 0; i < currentLine.length(); i++) {
-                    String currentLetter ="" + currentLine.charAt(i);
+                // If the state has a transition that is not null for that character
+                if (tempState.get(currentLetter) != null) {
+                    // Add to the current match
+                    match += currentLetter;
                     
-                    // If the state has a transition that is not null for that character
-                    if (tempState.get(currentLetter) != null) {
-                        // Add to the current match
-                        match += currentLetter;
-                        
-                        // Get the state that is transitioned to
-                        newState = tempState.get(currentLetter);
-                        
-                        // Get the transitions for that state
-                        tempState = this.deltaTransitions.get(newState);
-                    }
-                    // If it is a transition to null, stop processing the string and make the state "null"
-                    else {
-                        i = currentLine.length();
-                        newState = -1;
-                    }
-                }
-                
-                // If the state that is ended on is a accept state print the match
-                if (this.acceptStates.contains(newState)) {
-                    System.out.println("String matched " + match);
+                    // Get the state that is transitioned to
+                    newState = tempState.get(currentLetter);
+                    
+                    // Get the transitions for that state
+                    tempState = this.deltaTransitions.get(newState);
                 }
-                // If the start state is apart of the accept state and no longer string was matched
-                // match the empty string
-                else if (this.acceptStates.contains(this.startState)) {
-                    System.out.println("Empty String matched");
+                // If it is a transition to null, stop processing the string and make the state "null"
+                else {
+                    i = currentLine.length();
+                    newState = -1;
                 }
-                
             }
             
-            reader.close();
+            // If the state that is ended on is a accept state print the match
+            if (this.acceptStates.contains(newState)) {
+                out.println(prefix + "String matched " + match);
+            }
+            // If the start state is apart of the accept state and no longer string was matched
+            // match the empty string
+            else if (this.acceptStates.contains(this.startState)) {
+                out.println(prefix + "Empty String matched");
+            }
 
-        } catch (IOException e) {
-                System.out.println("Problem reading the file");
         }
     }
     
@@ -918,68 +1575,8 @@ class DFA {
      * @param file file to be output to
      */
     public void createDotFile(String file) {
-        File dotFile = new File(file);
-        
         try {
-            if (!dotFile.exists())
-                dotFile.createNewFile();
-            
-            // Use print writer for println
-            PrintWriter writer = new PrintWriter(new FileWriter(dotFile));
-            
-            // Header
-            writer.println("digraph DFA {");
-            writer.println("rankdir=LF;");
-            writer.println("node [shape = none]; \"\";");
-            
-            writer.print("node [shape = doublecircle]; ");
-            
-            // Get the amount of accepting states
-            int counter = 0;
-            if (this.acceptStates.size() == 1) {
-                counter = 1;
-            }
-            else {
-                counter = this.acceptStates.size();
-            }
-            
-            // Print the accepting states
-            for (int state : this.deltaTransitions.keySet()) {
-                // If there are more than one print them comma separated
-                if (this.acceptStates.contains(state) && counter > 1) {
-                    writer.print("q" + state + ", ");
-                    counter--;
-                }
-                // If there is only one or only one left print it followed by the semicolon
-                else if (counter == 1 && this.acceptStates.contains(state)) {
-                    writer.print("q" + state + ";");
-                }
-            }
-            writer.println();
-            
-            writer.println("node [shape = circle];");
-            writer.println("\"\" -> q" + this.startState + ";");
-            
-            // Print out all of the transitions
-            for (Map.Entry<Integer, Map<String, Integer>> element : this.deltaTransitions.entrySet()) {
-                int state = element.getKey();
-                
-                for (Map.Entry<String, Integer> stateTransitions : element.getValue().entrySet()) {
-                    
-                    // If the state to transition to is not null include the q otherwise just print null
-                    if (stateTransitions.getValue() != null) {
-                        writer.println("q" + state + " -> q" + stateTransitions.getValue() + " [ label = " + stateTransitions.getKey() + " ];");
-                    }
-                    else {
-                        writer.println("q" + state + " -> " + stateTransitions.getValue() + " [ label = " + stateTransitions.getKey() + " ];");
-                    }
-                }
-            }
-            
-            writer.println("}");
-            
-            writer.flush();
-            writer.close();
+            new GraphExporter(GraphExporter.DEFAULT_MAX_STATES).writeDot(this, file);
         }
         catch (IOException e) {
             System.out.println("Problem writing or creating the file");
@@ -1008,39 +1605,157 @@ public class Graphex {
      * @param args the command line arguments
      */
     public static void main(String[] args) {
-        String inputFile = null;
         String regex = null;
         String nfaDotFile = null;
         String dfaDotFile = null;
-        int alphabet[] = new int[256];       
+        String dfaJsonFile = null;
+        int maxGraphStates = GraphExporter.DEFAULT_MAX_STATES;
+        List<String> inputFiles = new ArrayList<String>();
+        List<String> andRegexes = new ArrayList<String>();
+        List<String> notRegexes = new ArrayList<String>();
+        boolean recursive = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxOpenFiles = 64;
+        boolean stats = false;
+        boolean optimize = true;
+        boolean find = false;
+        boolean follow = false;
+        String checkpointFile = null;
+        long pollMillis = 1000;
+        String profileFile = null;
+        String sampleFile = null;
         
         if (args.length > 0)  {
-            // If the nfa dot file is to be created get the file name
-            if (args[0].equals("-n")) {
-                nfaDotFile = args[1];
-                
+            int i = 0;
+            
+            // Read the options that come before the regular expression
+            while (i < args.length - 1 && args[i].startsWith("-")) {
+                // If the nfa dot file is to be created get the file name
+                if (args[i].equals("-n")) {
+                    nfaDotFile = args[i + 1];
+                    i += 2;
+                }
                 // If the dfa dot file is to be created get the file name
-                if (args[2].equals("-d")) {
-                    dfaDotFile = args[3];
-                    regex = args[4];
-                    inputFile = args[5];
+                else if (args[i].equals("-d")) {
+                    dfaDotFile = args[i + 1];
+                    i += 2;
+                }
+                // If the dfa is to be written as JSON get the file name
+                else if (args[i].equals("--json")) {
+                    dfaJsonFile = args[i + 1];
+                    i += 2;
+                }
+                // The most states drawn in the dot and JSON files
+                else if (args[i].equals("--max-graph-states")) {
+                    maxGraphStates = intOrExit(args[i], args[i + 1]);
+                    i += 2;
+                }
+                // Lines must also match this regular expression
+                else if (args[i].equals("--and")) {
+                    andRegexes.add(args[i + 1]);
+                    i += 2;
+                }
+                // Lines must not match this regular expression
+                else if (args[i].equals("--not")) {
+                    notRegexes.add(args[i + 1]);
+                    i += 2;
+                }
+                // Print every match inside each line instead of only whole lines
+                else if (args[i].equals("--find")) {
+                    find = true;
+                    i++;
+                }
+                // Keep reading the file as it grows
+                else if (args[i].equals("--follow")) {
+                    follow = true;
+                    i++;
+                }
+                // Where the position in the followed file is saved
+                else if (args[i].equals("--checkpoint")) {
+                    checkpointFile = args[i + 1];
+                    i += 2;
+                }
+                // The longest time between checks of the followed file
+                else if (args[i].equals("--poll")) {
+                    pollMillis = longOrExit(args[i], args[i + 1]);
+                    i += 2;
+                }
+                // Walk any directories given
+                else if (args[i].equals("-r")) {
+                    recursive = true;
+                    i++;
+                }
+                // The number of threads used for matching
+                else if (args[i].equals("--threads")) {
+                    threads = Math.max(1, intOrExit(args[i], args[i + 1]));
+                    i += 2;
+                }
+                // The most files that can be open at once
+                else if (args[i].equals("--max-open")) {
+                    maxOpenFiles = Math.max(1, intOrExit(args[i], args[i + 1]));
+                    i += 2;
+                }
+                // The most states a pattern can have to be generated as bytecode
+                else if (args[i].equals("--jit-max-states")) {
+                    JitCompiler.setMaxStates(intOrExit(args[i], args[i + 1]));
+                    i += 2;
+                }
+                // The number of threads used to turn NFAs into DFAs
+                else if (args[i].equals("--compile-threads")) {
+                    ParallelDeterminizer.setThreads(intOrExit(args[i], args[i + 1]));
+                    i += 2;
+                }
+                // The largest dense transition table, larger ones are compressed
+                else if (args[i].equals("--max-table-mb")) {
+                    CompiledPattern.setMaxDenseBytes(longOrExit(args[i], args[i + 1]) << 20);
+                    i += 2;
+                }
+                // The most states a DFA can have before the NFA is matched instead
+                else if (args[i].equals("--max-dfa-states")) {
+                    StateBudget.setMaxStates(intOrExit(args[i], args[i + 1]));
+                    i += 2;
+                }
+                // The most memory building a DFA can take before the NFA is matched instead
+                else if (args[i].equals("--max-dfa-mb")) {
+                    StateBudget.setMaxBytes(longOrExit(args[i], args[i + 1]) << 20);
+                    i += 2;
+                }
+                // Build the NFA from the regular expression exactly as it is written
+                else if (args[i].equals("--no-optimize")) {
+                    optimize = false;
+                    i++;
                 }
-                // Otherwise get the regular expression and the file to process
+                // Where the profile of the DFA states is loaded from or saved to
+                else if (args[i].equals("--profile")) {
+                    profileFile = args[i + 1];
+                    i += 2;
+                }
+                // A sample input the profile of the DFA states is recorded on
+                else if (args[i].equals("--train")) {
+                    sampleFile = args[i + 1];
+                    i += 2;
+                }
+                // Count and time every stage then print a summary
+                else if (args[i].equals("--stats")) {
+                    stats = true;
+                    GraphexStats.enable();
+                    i++;
+                }
+                // Otherwise it is the regular expression
                 else {
-                    regex = args[2];
-                    inputFile = args[3];
+                    break;
                 }
             }
-            // If the dfa dot file is to be create get the file name and other arguments
-            else if (args[0].equals("-d")) {
-                dfaDotFile = args[1];
-                regex = args[2];
-                inputFile = args[3];
+            
+            // Then get the regular expression and the files to process
+            if (i >= args.length) {
+                System.out.println("No regular expression given");
+                
+                System.exit(0);
             }
-            // Otherwise just get the regular expression and the fil to process
-            else {
-                regex = args[0];
-                inputFile = args[1];
+            regex = args[i];
+            for (i = i + 1; i < args.length; i++) {
+                inputFiles.add(args[i]);
             }
         }
         else {
@@ -1049,66 +1764,286 @@ public class Graphex {
             System.exit(0);
         }        
         
+        if (inputFiles.isEmpty()) {
+            System.out.println("No input file given");
+            
+            System.exit(0);
+        }
+        
+        // A followed file is matched a line at a time as it grows, so only whole lines are matched
+        if (follow && find) {
+            System.out.println("--find cannot be used with --follow");
+            
+            System.exit(0);
+        }
+        
         // Parse the regular expression and get the regular expression
-        RegexParser regexParse = new RegexParser(regex);
-        Regex r = regexParse.parse();
+        Regex r = parseOrExit(regex);
+        if (optimize) {
+            r = RegexOptimizer.optimize(r);
+        }
         
-        // Get the alphabet used
-        getAlphabet(inputFile, alphabet);
+        // Get every file to be processed
+        List<String> files = FileScanner.collectFiles(inputFiles, recursive, System.out);
         
         // Create an nfa from the regular expression and then a dfa from the nfa
-        NFA nfa = r.createNFA(new StateNumber());
-        DFA dfa = nfa.nfaToDFA();
-        
-        // Add the null transitions given the alphabet
-        dfa.transitionToNullState(alphabet);
+        long start = GraphexStats.start();
+        StateNumber states = new StateNumber();
+        NFA nfa = r.createNFA(states);
+        GraphexStats.nfaBuilt(start, states.getStateCount());
         
-        // If the dot files are to be written to write to them
+        // The NFA graph is written first since it is there even when the DFA is too large
+        GraphExporter exporter = new GraphExporter(maxGraphStates);
         if (nfaDotFile != null) {
-            nfa.createDotFile(nfaDotFile);
+            try {
+                exporter.writeDot(nfa, nfaDotFile);
+            }
+            catch (IOException e) {
+                System.out.println("Problem writing or creating the file");
+            }
+        }
+        
+        DFA dfa;
+        try {
+            dfa = nfa.nfaToDFA();
+        }
+        catch (StateBudgetException e) {
+            scanWithNfa(e, nfa, files, find, threads, maxOpenFiles, recursive,
+                    !andRegexes.isEmpty() || !notRegexes.isEmpty() || follow || dfaDotFile != null || dfaJsonFile != null);
+            
+            if (stats) {
+                System.err.print(GraphexStats.get());
+            }
+            return;
+        }
+        
+        // Combine the other regular expressions into the one DFA so the files are only read once
+        try {
+            for (String other : andRegexes) {
+                dfa = dfa.intersect(toNFA(parseOrExit(other), optimize).nfaToDFA());
+            }
+            for (String other : notRegexes) {
+                dfa = dfa.difference(toNFA(parseOrExit(other), optimize).nfaToDFA());
+            }
+        }
+        catch (StateBudgetException e) {
+            System.out.println(e.getMessage() + ", use --max-dfa-states or --max-dfa-mb for --and or --not");
+            System.exit(0);
+        }
+        
+        // Number the states that are used together next to each other in the table
+        try {
+            StateProfile profile = null;
+            if (sampleFile != null) {
+                try (BufferedReader sample = new BufferedReader(new FileReader(sampleFile))) {
+                    profile = StateProfile.record(dfa, sample);
+                }
+                if (profileFile != null) {
+                    profile.save(new File(profileFile).toPath());
+                }
+            }
+            else if (profileFile != null) {
+                profile = StateProfile.load(new File(profileFile).toPath());
+            }
+            
+            if (profile != null && profile.fits(dfa)) {
+                dfa = profile.apply(dfa);
+            }
+            else if (profile != null) {
+                System.err.println("The profile is for a different pattern so it is not used");
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Problem reading or writing the profile");
+        }
+        
+        CompiledPattern pattern = dfa.compile();
+        
+        // If the graphs are to be written write to them
+        try {
+            if (dfaDotFile != null) {
+                exporter.writeDot(dfa, dfaDotFile);
+            }
+            
+            if (dfaJsonFile != null) {
+                exporter.writeJson(dfa, dfaJsonFile);
+            }
+        }
+        catch (IOException e) {
+            System.out.println("Problem writing or creating the file");
+        }
+        
+        // Follow one file until the program is stopped
+        if (follow) {
+            if (inputFiles.size() != 1) {
+                System.out.println("Only one file can be followed");
+                
+                System.exit(0);
+            }
+            
+            try {
+                new FileFollower(pattern, StateProfile.fingerprint(dfa), inputFiles.get(0), checkpointFile,
+                        pollMillis).follow(System.out);
+            }
+            catch (IOException e) {
+                System.out.println("Problem reading the file");
+            }
+            return;
         }
         
-        if (dfaDotFile != null) {
-            dfa.createDotFile(dfaDotFile);
+        // To find matches inside a line the reverse DFA is also needed
+        SpanFinder finder = null;
+        if (find) {
+            try {
+                finder = new SpanFinder(pattern, dfa.reverse().compile());
+            }
+            catch (StateBudgetException e) {
+                scanWithNfa(e, nfa, files, find, threads, maxOpenFiles, recursive,
+                        !andRegexes.isEmpty() || !notRegexes.isEmpty());
+                
+                if (stats) {
+                    System.err.print(GraphexStats.get());
+                }
+                return;
+            }
         }
         
-        // Regex the file
-        dfa.performRegexOnFile(inputFile);
+        // Regex the files, the workers share the compiled pattern
+        FileScanner scanner = new FileScanner(pattern, finder, threads, maxOpenFiles, recursive);
+        scanner.scan(files, System.out);
+        
+        if (stats) {
+            System.err.print(GraphexStats.get());
+        }
     }
     
     /**
-     * Gets the alphabet of characters used in the file to be processed
-     * @param input file to be processed
-     * @param alphabet array of the alphabet
+     * Scans the files by simulating the NFA when its DFA is over the StateBudget
+     * The NFA can only match one regular expression, so the options that
+     * need a DFA stop the program instead
+     * @param e what the pattern needed
+     * @param nfa the NFA of the regular expression
+     * @param files the files from collectFiles
+     * @param find true to print every match inside each line
+     * @param threads the number of threads used for matching
+     * @param maxOpenFiles the most files that can be open at once
+     * @param recursive true if directories should be walked
+     * @param needsDfa true if an option was given that needs the DFA
      */
-    public static void getAlphabet(String input, int[] alphabet) {
-        File f = new File(input);
+    private static void scanWithNfa(StateBudgetException e, NFA nfa, List<String> files, boolean find, int threads,
+            int maxOpenFiles, boolean recursive, boolean needsDfa) {
+        if (needsDfa) {
+            System.out.println(e.getMessage() + ", use --max-dfa-states or --max-dfa-mb for --and, --not, --follow, -d or --json");
+            
+            System.exit(0);
+        }
         
-        if (!f.exists()) {
-            System.out.println("Input file does not exist");
+        // Say which engine is used on standard error so the matches printed are the same
+        System.err.println(e.getMessage() + ", matching with the NFA");
+        GraphexStats.nfaFallback();
+        
+        FileScanner scanner = new FileScanner(new NfaPattern(nfa), find, threads, maxOpenFiles, recursive);
+        scanner.scan(files, System.out);
+    }
+    
+    /**
+     * Reads the number given to an option on the command line
+     * @param option the option
+     * @param value the value given to it
+     * @return the number, the program stops if it is not one
+     */
+    static int intOrExit(String option, String value) {
+        try {
+            return Integer.parseInt(value);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + option);
             
             System.exit(0);
+            return 0;
         }
- 
+    }
+    
+    /**
+     * Reads the number given to an option on the command line
+     * @param option the option
+     * @param value the value given to it
+     * @return the number, the program stops if it is not one
+     */
+    static long longOrExit(String option, String value) {
         try {
-
-            String currentLine;
-
-            BufferedReader reader = new BufferedReader(new FileReader(input));
-
-            // For every character just add it to its ascii position in the array
-            while ((currentLine = reader.readLine()) != null) {
-                for (int i = 0; i < currentLine.length(); i++) {
-                    int asciiCode = (int) currentLine.charAt(i);
-                    alphabet[asciiCode]++;
-                }
-            }
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e) {
+            System.out.println("Invalid value for " + option);
             
-            reader.close();
-
-        } catch (IOException e) {
-                System.out.println("Problem reading the file");
+            System.exit(0);
+            return 0;
+        }
+    }
+    
+    /**
+     * Parses a regular expression given on the command line
+     * @param regex the regular expression
+     * @return the parsed regular expression, the program stops if it is not valid
+     */
+    private static Regex parseOrExit(String regex) {
+        try {
+            return new RegexParser(regex).parse();
         }
+        catch (RegexSyntaxException e) {
+            System.out.println("Invalid regex");
+            
+            System.exit(0);
+            return null;
+        }
+    }
+    
+    /**
+     * Parses a regular expression and turns it into a DFA
+     * @param regex the regular expression
+     * @return the DFA
+     * @throws RegexSyntaxException if the regular expression is not valid
+     * @throws StateBudgetException if the DFA would be larger than the StateBudget
+     */
+    public static DFA toDFA(String regex) {
+        return toDFA(new RegexParser(regex).parse());
+    }
+    
+    /**
+     * Optimizes a parsed regular expression and turns it into a DFA
+     * @param regex the regular expression
+     * @return the DFA
+     * @throws StateBudgetException if the DFA would be larger than the StateBudget
+     */
+    public static DFA toDFA(Regex regex) {
+        return toNFA(regex).nfaToDFA();
+    }
+    
+    /**
+     * Optimizes a parsed regular expression and turns it into a NFA
+     * @param regex the regular expression
+     * @return the NFA
+     */
+    public static NFA toNFA(Regex regex) {
+        return toNFA(regex, true);
+    }
+    
+    /**
+     * Turns a parsed regular expression into a NFA
+     * @param regex the regular expression
+     * @param optimize false to build the NFA exactly as it is written
+     * @return the NFA
+     */
+    public static NFA toNFA(Regex regex, boolean optimize) {
+        Regex r = optimize ? RegexOptimizer.optimize(regex) : regex;
+        
+        long start = GraphexStats.start();
+        StateNumber states = new StateNumber();
+        NFA nfa = r.createNFA(states);
+        GraphexStats.nfaBuilt(start, states.getStateCount());
+        
+        return nfa;
     }
     
 }
@@ -0,0 +1,979 @@
+/*
+ * Compare the whole program against java.util.regex on generated inputs
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * A benchmark of the whole of Graphex against java.util.regex
+ * For every pattern a log like corpus is generated from a seed. A share of
+ * its lines, the match density, is made by walking the DFA of the pattern so
+ * they are known to match. Graphex compiles the pattern and scans the corpus
+ * file with a FileScanner. The same parsed regular expression is written in
+ * java.util.regex syntax, so the parser's own precedence is kept, and the file
+ * is read line by line with Pattern. The two outputs must agree. For whole
+ * lines they are compared exactly. With --find the span of every match is
+ * compared. java.util.regex takes the first alternative rather than the
+ * longest match, so after the timed runs the corpus is read once more with
+ * each match it finds stretched to the longest one from the same start,
+ * and the spans GraphexMatcher.find gives are checked against those too.
+ * Each pattern gives one line of JSON with the compile times, the state
+ * counts, the MB/s of each engine and the peak heap and resident memory
+ * while each engine ran
+ */
+public final class GraphexBenchmark {
+    private static final String[] WORDS = { "alpha", "beta", "gamma", "delta", "error", "warn", "info", "debug",
+            "user", "session", "request", "timeout", "socket", "cache", "query", "index" };
+
+    private final int lines;
+    private final int lineLength;
+    private final double density;
+    private final long seed;
+    private final boolean find;
+    private final int runs;
+    private final int threads;
+    private final long javaTimeoutMillis;
+    private final Path directory;
+
+    /**
+     * A pattern with a name to report it by
+     */
+    private static final class Case {
+        final String name;
+        final String regex;
+
+        Case(String name, String regex) {
+            this.name = name;
+            this.regex = regex;
+        }
+    }
+
+    /**
+     * Thrown by a Deadline when java.util.regex has run too long
+     */
+    private static final class TimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        TimeoutException() {
+            super("java.util.regex took too long", null, false, false);
+        }
+    }
+
+    /**
+     * A line that stops java.util.regex once the time is up, backtracking
+     * can take exponential time on the adversarial patterns
+     */
+    private static final class Deadline implements CharSequence {
+        private final String text;
+        private final long until;
+        private int reads = 0;
+
+        Deadline(String text, long until) {
+            this.text = text;
+            this.until = until;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if ((++this.reads & 0xffff) == 0 && System.nanoTime() > this.until) {
+                throw new TimeoutException();
+            }
+            return this.text.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return this.text.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new Deadline(this.text.substring(start, end), this.until);
+        }
+
+        @Override
+        public String toString() {
+            return this.text;
+        }
+    }
+
+    /**
+     * Constructor for GraphexBenchmark
+     * @param lines the number of lines in each corpus
+     * @param lineLength the usual length of a line
+     * @param density the share of lines made to match
+     * @param seed the seed every corpus is generated from
+     * @param find true to find matches inside lines instead of matching whole lines
+     * @param runs how many times each engine scans, the fastest is reported
+     * @param threads the number of threads Graphex matches with
+     * @param javaTimeoutMillis the longest java.util.regex may take for one corpus
+     * @param directory where the corpora are written
+     */
+    public GraphexBenchmark(int lines, int lineLength, double density, long seed, boolean find, int runs,
+            int threads, long javaTimeoutMillis, Path directory) {
+        this.lines = lines;
+        this.lineLength = lineLength;
+        this.density = density;
+        this.seed = seed;
+        this.find = find;
+        this.runs = runs;
+        this.threads = threads;
+        this.javaTimeoutMillis = javaTimeoutMillis;
+        this.directory = directory;
+    }
+
+    /**
+     * @return patterns like those used on logs
+     */
+    private static List<Case> logCases() {
+        List<Case> cases = new ArrayList<Case>();
+        cases.add(new Case("literal", "timeout"));
+        cases.add(new Case("digits", "id=(0|1|2|3|4|5|6|7|8|9)(0|1|2|3|4|5|6|7|8|9)*"));
+        cases.add(new Case("words", "(" + String.join("|", WORDS) + ")"));
+        cases.add(new Case("fields", "user=(a|b|c|d|e)*;(error|warn)"));
+        return cases;
+    }
+
+    /**
+     * @return patterns where a match that starts later ends first, so
+     * with --find they check matches are leftmost-longest
+     */
+    private static List<Case> spanCases() {
+        List<Case> cases = new ArrayList<Case>();
+        cases.add(new Case("inner-end", "(xyz)|y"));
+        cases.add(new Case("inner-letter", "(abcd)|c"));
+        cases.add(new Case("inner-word", "(user session)|(session)"));
+        cases.add(new Case("inner-value", "(error=(0|1|2|3)*)|(=)"));
+        return cases;
+    }
+
+    /**
+     * @param n the size of the patterns
+     * @return patterns that are hard for one engine or the other
+     */
+    private static List<Case> adversarialCases(int n) {
+        List<Case> cases = new ArrayList<Case>();
+
+        // The DFA has 2^n states since it has to remember the last n characters
+        cases.add(new Case("explosion-" + n, "(a|b)*a" + repeat("(a|b)", n)));
+
+        // A long alternation of generated words
+        Random random = new Random(n);
+        StringBuilder alternation = new StringBuilder("(");
+        for (int i = 0; i < 200 * n; i++) {
+            if (i > 0) {
+                alternation.append('|');
+            }
+            for (int j = 0; j < 6; j++) {
+                alternation.append((char) ('a' + random.nextInt(26)));
+            }
+        }
+        cases.add(new Case("alternation-" + 200 * n, alternation.append(')').toString()));
+
+        // Stars nested inside stars
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < 2 * n; i++) {
+            nested.append('(');
+        }
+        nested.append("a|b");
+        for (int i = 0; i < 2 * n; i++) {
+            nested.append(")*").append((char) ('c' + i % 20));
+        }
+        cases.add(new Case("nesting-" + 2 * n, nested.toString()));
+
+        // Backtracking tries every way of splitting the a's
+        cases.add(new Case("backtrack-" + n, "(a|aa)*" + repeat("a", n) + "c"));
+        return cases;
+    }
+
+    /**
+     * @param part a regular expression
+     * @param count how many times
+     * @return the regular expression written out that many times
+     */
+    private static String repeat(String part, int count) {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            result.append(part);
+        }
+        return result.toString();
+    }
+
+    /**
+     * Runs one pattern
+     * @param c the pattern
+     * @return the result as one line of JSON
+     * @throws IOException if the corpus cannot be written or read
+     */
+    private String run(Case c) throws IOException {
+        Map<String, Object> result = new LinkedHashMap<String, Object>();
+        result.put("name", c.name);
+        result.put("find", this.find);
+        result.put("lines", this.lines);
+        result.put("lineLength", this.lineLength);
+        result.put("density", this.density);
+        result.put("seed", this.seed);
+
+        // Compile with Graphex
+        resetPeaks();
+        boolean rss = resetPeakRss();
+        long start = System.nanoTime();
+        Regex regex = new RegexParser(c.regex).parse();
+        StateNumber states = new StateNumber();
+        NFA nfa = RegexOptimizer.optimize(regex).createNFA(states);
+        CompiledPattern pattern = null;
+        SpanFinder finder = null;
+        try {
+            DFA dfa = nfa.nfaToDFA();
+            pattern = dfa.compile();
+            finder = this.find ? new SpanFinder(pattern, dfa.reverse().compile()) : null;
+        }
+        catch (StateBudgetException e) {
+            // Over the budget the NFA is simulated, the same as the program does
+            pattern = null;
+        }
+        NfaPattern simulated = pattern == null ? new NfaPattern(nfa) : null;
+        result.put("graphexCompileMs", millis(System.nanoTime() - start));
+        result.put("engine", pattern != null ? "dfa" : "nfa");
+        result.put("nfaStates", states.getStateCount());
+        if (pattern != null) {
+            result.put("dfaStates", pattern.getStateCount());
+            result.put("classes", pattern.getClassCount());
+            result.put("tableBytes", pattern.getTableBytes());
+            result.put("jit", pattern.getJit() != null);
+        }
+
+        Path corpus = this.directory.resolve("graphex-bench-" + c.name + ".txt");
+        Strings strings = pattern != null ? new Walker(pattern) : new Sampler(regex);
+        long bytes = writeCorpus(corpus, strings, new Random(this.seed ^ c.name.hashCode()));
+        result.put("bytes", bytes);
+
+        // Scan with Graphex
+        FileScanner scanner = pattern != null ? new FileScanner(pattern, finder, this.threads, 64, false)
+                : new FileScanner(simulated, this.find, this.threads, 64, false);
+        List<String> files = Collections.singletonList(corpus.toString());
+        String graphexDigest = null;
+        long graphexNanos = Long.MAX_VALUE;
+        for (int r = 0; r < this.runs; r++) {
+            Output output = new Output(this.find);
+            long scanStart = System.nanoTime();
+            scanner.scan(files, output.stream);
+            graphexNanos = Math.min(graphexNanos, System.nanoTime() - scanStart);
+            graphexDigest = output.digest();
+        }
+        result.put("graphexMBps", megabytesPerSecond(bytes, graphexNanos));
+        result.put("graphexHeapPeak", heapPeak());
+        result.put("graphexPeakRssKb", rss ? peakRss() : -1);
+
+        // Compile and scan with java.util.regex
+        resetPeaks();
+        rss = resetPeakRss();
+        start = System.nanoTime();
+        Pattern javaPattern = Pattern.compile(toJava(regex));
+        result.put("javaCompileMs", millis(System.nanoTime() - start));
+
+        String javaDigest = null;
+        long javaNanos = Long.MAX_VALUE;
+        try {
+            for (int r = 0; r < this.runs; r++) {
+                Output output = new Output(this.find);
+                long scanStart = System.nanoTime();
+                scanJava(javaPattern, corpus, output.stream, scanStart + this.javaTimeoutMillis * 1000000L, false);
+                javaNanos = Math.min(javaNanos, System.nanoTime() - scanStart);
+                javaDigest = output.digest();
+            }
+            result.put("javaMBps", megabytesPerSecond(bytes, javaNanos));
+            result.put("speedup", Math.round(100.0 * javaNanos / graphexNanos) / 100.0);
+        }
+        catch (TimeoutException e) {
+            result.put("javaMBps", "timeout");
+        }
+        catch (StackOverflowError e) {
+            result.put("javaMBps", "stack overflow");
+        }
+        result.put("javaHeapPeak", heapPeak());
+        result.put("javaPeakRssKb", rss ? peakRss() : -1);
+
+        // The longest match from each start is found apart from the timed runs since it is slow
+        if (this.find && javaDigest != null) {
+            try {
+                Output output = new Output(true);
+                scanJava(javaPattern, corpus, output.stream, System.nanoTime() + this.javaTimeoutMillis * 1000000L, true);
+                javaDigest = output.digest();
+            }
+            catch (TimeoutException | StackOverflowError e) {
+                javaDigest = null;
+            }
+        }
+        result.put("agree", javaDigest == null ? null : javaDigest.equals(graphexDigest));
+
+        // The library gives the same spans as --find, so GraphexMatcher.find is checked against them too
+        if (this.find) {
+            Output output = new Output(true);
+            scanMatcher(GraphexPattern.compile(c.regex, regex), corpus, output.stream);
+            result.put("matcherAgree", javaDigest == null ? null : javaDigest.equals(output.digest()));
+        }
+
+        Files.deleteIfExists(corpus);
+        return toJson(result);
+    }
+
+    /**
+     * Writes a corpus of log lines, the matching ones are made by the strings
+     * @param file where it is written
+     * @param walker makes the strings the pattern accepts
+     * @param random the random numbers
+     * @return the number of bytes written
+     * @throws IOException if the file cannot be written
+     */
+    private long writeCorpus(Path file, Strings walker, Random random) throws IOException {
+
+        try (BufferedWriter writer = Files.newBufferedWriter(file, Charset.defaultCharset())) {
+            for (int i = 0; i < this.lines; i++) {
+                String line;
+                if (random.nextDouble() < this.density && walker.canMatch()) {
+                    String match = walker.walk(random, this.find ? Math.max(1, this.lineLength / 4) : this.lineLength);
+                    line = this.find ? logLine(random, this.lineLength / 2) + match + " " + logLine(random, this.lineLength / 4)
+                            : match;
+                }
+                else {
+                    line = logLine(random, this.lineLength);
+                }
+                writer.write(line);
+                writer.write('\n');
+            }
+        }
+        return Files.size(file);
+    }
+
+    /**
+     * @param random the random numbers
+     * @param length about how long the line is
+     * @return a line that looks like it came from a log
+     */
+    private static String logLine(Random random, int length) {
+        StringBuilder line = new StringBuilder();
+        line.append(String.format("2024-%02d-%02d %02d:%02d:%02d ", 1 + random.nextInt(12), 1 + random.nextInt(28),
+                random.nextInt(24), random.nextInt(60), random.nextInt(60)));
+        while (line.length() < length) {
+            line.append(WORDS[random.nextInt(WORDS.length)]);
+            line.append(random.nextInt(4) == 0 ? "=" + random.nextInt(100000) : "");
+            line.append(' ');
+        }
+        return line.toString();
+    }
+
+    /**
+     * Makes strings a pattern accepts
+     */
+    private interface Strings {
+        /**
+         * @return true if the pattern accepts a non-empty string
+         */
+        boolean canMatch();
+
+        /**
+         * @param random the random numbers
+         * @param length about how long the string should be
+         * @return a non-empty string the pattern accepts
+         */
+        String walk(Random random, int length);
+    }
+
+    /**
+     * Makes strings a regular expression accepts by choosing at random at
+     * each union and star, used when there is no DFA to walk
+     */
+    private static final class Sampler implements Strings {
+        private static final int TRIES = 100;
+
+        private final Regex regex;
+        private final boolean nonEmpty;
+
+        Sampler(Regex regex) {
+            this.regex = regex;
+
+            Random random = new Random(0);
+            boolean found = false;
+            for (int i = 0; i < TRIES && !found; i++) {
+                found = sample(random, regex, new StringBuilder(), 1).length() > 0;
+            }
+            this.nonEmpty = found;
+        }
+
+        @Override
+        public boolean canMatch() {
+            return this.nonEmpty;
+        }
+
+        @Override
+        public String walk(Random random, int length) {
+            String text = "";
+            for (int i = 0; i < TRIES && text.isEmpty(); i++) {
+                text = sample(random, this.regex, new StringBuilder(), Math.max(1, length / 8)).toString();
+            }
+            return text;
+        }
+
+        /**
+         * @param random the random numbers
+         * @param regex the part of the regular expression
+         * @param text where the string is added
+         * @param repeats the most times a star repeats
+         * @return the text
+         */
+        private static StringBuilder sample(Random random, Regex regex, StringBuilder text, int repeats) {
+            if (regex instanceof Symbol) {
+                text.append(((Symbol) regex).getSymbol().charAt(0));
+            }
+            else if (regex instanceof CharClass) {
+                String characters = ((CharClass) regex).getCharacters();
+                text.append(characters.charAt(random.nextInt(characters.length())));
+            }
+            else if (regex instanceof Concatenation) {
+                sample(random, ((Concatenation) regex).getFirst(), text, repeats);
+                sample(random, ((Concatenation) regex).getSecond(), text, repeats);
+            }
+            else if (regex instanceof Union) {
+                sample(random, random.nextBoolean() ? ((Union) regex).getFirst() : ((Union) regex).getSecond(),
+                        text, repeats);
+            }
+            else if (regex instanceof Star) {
+                for (int n = random.nextInt(repeats + 1); n > 0; n--) {
+                    sample(random, ((Star) regex).getRegex(), text, repeats);
+                }
+            }
+            return text;
+        }
+    }
+
+    /**
+     * Makes strings a DFA accepts by walking its transitions
+     */
+    private static final class Walker implements Strings {
+        private final CompiledPattern pattern;
+        private final char[] letters;
+        private final int[] distance;
+
+        Walker(CompiledPattern pattern) {
+            this.pattern = pattern;
+
+            // One character stands for each class, line ends are left out
+            this.letters = new char[pattern.getClassCount()];
+            boolean[] found = new boolean[pattern.getClassCount()];
+            for (int c = 0; c <= Character.MAX_VALUE; c++) {
+                int k = pattern.classOf((char) c);
+                if (!found[k] && c != '\n' && c != '\r' && !Character.isSurrogate((char) c)) {
+                    found[k] = true;
+                    this.letters[k] = (char) c;
+                }
+            }
+            found[0] = false;
+
+            // The fewest characters from each state to an accepting one
+            int states = pattern.getStateCount();
+            this.distance = new int[states];
+            Arrays.fill(this.distance, Integer.MAX_VALUE);
+            for (int s = 0; s < states; s++) {
+                if (pattern.isAccepting(s)) {
+                    this.distance[s] = 0;
+                }
+            }
+            for (boolean changed = true; changed; ) {
+                changed = false;
+                for (int s = 0; s < states; s++) {
+                    for (int k = 1; k < this.letters.length; k++) {
+                        int t = found[k] ? pattern.nextClass(s, k) : CompiledPattern.DEAD_STATE;
+                        if (t != CompiledPattern.DEAD_STATE && this.distance[t] != Integer.MAX_VALUE
+                                && this.distance[t] + 1 < this.distance[s]) {
+                            this.distance[s] = this.distance[t] + 1;
+                            changed = true;
+                        }
+                    }
+                }
+            }
+            for (int k = 0; k < found.length; k++) {
+                if (!found[k]) {
+                    this.letters[k] = 0;
+                }
+            }
+        }
+
+        @Override
+        public boolean canMatch() {
+            return this.distance[this.pattern.getStart()] != Integer.MAX_VALUE;
+        }
+
+        /**
+         * @param random the random numbers
+         * @param length about how long the string should be
+         * @return a non-empty string the pattern accepts if there is one near that length
+         */
+        @Override
+        public String walk(Random random, int length) {
+            StringBuilder text = new StringBuilder();
+            int state = this.pattern.getStart();
+
+            // Wander at random while the pattern can still be finished
+            while (text.length() < length) {
+                int k = pick(random, state, false);
+                if (k == -1) {
+                    break;
+                }
+                text.append(this.letters[k]);
+                state = this.pattern.nextClass(state, k);
+            }
+
+            // Then take the shortest way to an accepting state
+            while (this.distance[state] > 0 || text.length() == 0) {
+                int k = pick(random, state, true);
+                if (k == -1) {
+                    break;
+                }
+                text.append(this.letters[k]);
+                state = this.pattern.nextClass(state, k);
+            }
+            return text.toString();
+        }
+
+        /**
+         * @param random the random numbers
+         * @param state the current state
+         * @param closer true to only take classes that get closer to accepting
+         * @return a class that keeps an accepting state in reach, or -1
+         */
+        private int pick(Random random, int state, boolean closer) {
+            int chosen = -1;
+            int seen = 0;
+            for (int k = 1; k < this.letters.length; k++) {
+                if (this.letters[k] == 0) {
+                    continue;
+                }
+                int t = this.pattern.nextClass(state, k);
+                if (t == CompiledPattern.DEAD_STATE || this.distance[t] == Integer.MAX_VALUE
+                        || (closer && this.distance[t] >= this.distance[state] && this.distance[state] > 0)) {
+                    continue;
+                }
+                if (random.nextInt(++seen) == 0) {
+                    chosen = k;
+                }
+            }
+            return chosen;
+        }
+    }
+
+    /**
+     * Scans a corpus the way the program does but with java.util.regex
+     * With --find the span of every match that is not empty is printed
+     * @param pattern the pattern
+     * @param corpus the file
+     * @param out where the output is printed
+     * @param until when to give up, from System.nanoTime
+     * @param longest true to stretch each match to the longest one from its start, as Graphex finds them
+     * @throws IOException if the file cannot be read
+     */
+    private void scanJava(Pattern pattern, Path corpus, PrintStream out, long until, boolean longest)
+            throws IOException {
+        boolean emptyMatches = pattern.matcher("").matches();
+        Matcher matcher = pattern.matcher("");
+        long lineNumber = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(corpus, Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                matcher.reset(new Deadline(line, until));
+
+                if (this.find) {
+                    int from = 0;
+                    while (from <= line.length() && matcher.find(from)) {
+                        int start = matcher.start();
+                        int end = longest ? longestEnd(matcher, start, matcher.end(), line.length()) : matcher.end();
+
+                        // Empty matches are not printed, the search just moves past them
+                        if (end > start) {
+                            out.println(lineNumber + ":" + start + "-" + end);
+                            from = end;
+                        }
+                        else {
+                            from = start + 1;
+                        }
+                    }
+                }
+                else if (line.length() > 0 && matcher.matches()) {
+                    out.println("String matched " + line);
+                }
+                else if (emptyMatches) {
+                    out.println("Empty String matched");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a file line by line with GraphexMatcher.find, printing the span
+     * of every match as scanJava does
+     * @param pattern the pattern
+     * @param corpus the file
+     * @param out where the spans are printed
+     * @throws IOException if the file cannot be read
+     */
+    private static void scanMatcher(GraphexPattern pattern, Path corpus, PrintStream out) throws IOException {
+        GraphexMatcher matcher = pattern.matcher();
+        long lineNumber = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(corpus, Charset.defaultCharset())) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                matcher.reset(line);
+                while (matcher.find()) {
+                    out.println(lineNumber + ":" + matcher.start() + "-" + matcher.end());
+                }
+            }
+        }
+    }
+
+    /**
+     * @param matcher the matcher over the line
+     * @param start where a match starts
+     * @param end where the match java.util.regex found ends
+     * @param length the length of the line
+     * @return one past the end of the longest match from the start
+     */
+    private static int longestEnd(Matcher matcher, int start, int end, int length) {
+        for (int e = length; e > end; e--) {
+            if (matcher.region(start, e).matches()) {
+                return e;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * The output of a scan kept as a digest so large corpora fit in memory
+     * With find only the line number and span of each match is kept
+     */
+    private static final class Output {
+        final PrintStream stream;
+        private final MessageDigest digest;
+
+        Output(boolean find) {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+
+            OutputStream sink = new DigestOutputStream(OutputStream.nullOutputStream(), this.digest);
+            this.stream = new PrintStream(find ? new Spans(sink) : sink);
+        }
+
+        String digest() {
+            this.stream.flush();
+            StringBuilder hex = new StringBuilder();
+            for (byte b : this.digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+
+    /**
+     * Turns "String found x at n:a-b" lines into n:a-b
+     */
+    private static final class Spans extends OutputStream {
+        private final OutputStream out;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+        Spans(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (b != '\n') {
+                this.line.write(b);
+                return;
+            }
+
+            String text = this.line.toString();
+            this.line.reset();
+
+            int at = text.lastIndexOf(" at ");
+            String span = text.startsWith("String found ") && at != -1 ? text.substring(at + 4) : text;
+            this.out.write((span + "\n").getBytes());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Writes a parsed regular expression in java.util.regex syntax, every
+     * part is grouped so the parser's precedence is kept
+     * @param regex the regular expression
+     * @return the same regular expression for java.util.regex
+     */
+    static String toJava(Regex regex) {
+        if (regex instanceof Symbol) {
+            return quote(((Symbol) regex).getSymbol().charAt(0));
+        }
+        if (regex instanceof CharClass) {
+            StringBuilder result = new StringBuilder("[");
+            for (char c : ((CharClass) regex).getCharacters().toCharArray()) {
+                result.append(quote(c));
+            }
+            return result.append(']').toString();
+        }
+        if (regex instanceof Epsilon) {
+            return "(?:)";
+        }
+        if (regex instanceof Concatenation) {
+            return toJava(((Concatenation) regex).getFirst()) + toJava(((Concatenation) regex).getSecond());
+        }
+        if (regex instanceof Union) {
+            return "(?:" + toJava(((Union) regex).getFirst()) + "|" + toJava(((Union) regex).getSecond()) + ")";
+        }
+        if (regex instanceof Star) {
+            return "(?:" + toJava(((Star) regex).getRegex()) + ")*";
+        }
+        throw new IllegalArgumentException("Unknown regular expression " + regex.getClass());
+    }
+
+    /**
+     * @param c a character
+     * @return the character written so java.util.regex takes it literally
+     */
+    private static String quote(char c) {
+        return String.format("\\x{%x}", (int) c);
+    }
+
+    /**
+     * Resets the peak usage of every heap memory pool
+     */
+    private static void resetPeaks() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the peak usage of the heap pools since resetPeaks
+     */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Starts the largest resident set again from the current one
+     * @return true if it was reset, it can only be on Linux
+     */
+    private static boolean resetPeakRss() {
+        try {
+            Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes());
+            return true;
+        }
+        catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the largest resident set of the process since resetPeakRss in kilobytes, or -1 if it is not known
+     */
+    private static long peakRss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmHWM:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            // Not on Linux
+        }
+        return -1;
+    }
+
+    /**
+     * @param nanos a time
+     * @return the time in milliseconds to two places
+     */
+    private static double millis(long nanos) {
+        return Math.round(nanos / 10000.0) / 100.0;
+    }
+
+    /**
+     * @param bytes the bytes scanned
+     * @param nanos how long it took
+     * @return the megabytes per second to two places
+     */
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return Math.round(bytes / (1024.0 * 1024.0) / (nanos / 1e9) * 100) / 100.0;
+    }
+
+    /**
+     * @param values the fields of a result
+     * @return the fields as one JSON object
+     */
+    private static String toJson(Map<String, Object> values) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append('"').append(value.getKey()).append("\": ");
+            Object v = value.getValue();
+            if (v instanceof String) {
+                json.append('"').append(((String) v).replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            else {
+                json.append(v);
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Runs the benchmark
+     * @param args --suite log|adversarial|spans|all, --lines n, --line-length n,
+     *        --density d, --seed n, --size n, --find, --runs n, --threads n,
+     *        --java-timeout ms, --out file and --regex r to run one pattern
+     */
+    public static void main(String[] args) {
+        String suite = "log";
+        String regex = null;
+        int lines = 100000;
+        int lineLength = 80;
+        double density = 0.1;
+        long seed = 42;
+        int size = 10;
+        boolean find = false;
+        int runs = 3;
+        int threads = 1;
+        long javaTimeout = 60000;
+        String outFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--find")) {
+                find = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                System.out.println("Missing value for " + arg);
+
+                System.exit(0);
+            }
+            String value = args[++i];
+            if (arg.equals("--suite")) {
+                suite = value;
+            }
+            else if (arg.equals("--regex")) {
+                regex = value;
+            }
+            else if (arg.equals("--lines")) {
+                lines = Integer.parseInt(value);
+            }
+            else if (arg.equals("--line-length")) {
+                lineLength = Integer.parseInt(value);
+            }
+            else if (arg.equals("--density")) {
+                density = Double.parseDouble(value);
+            }
+            else if (arg.equals("--seed")) {
+                seed = Long.parseLong(value);
+            }
+            else if (arg.equals("--size")) {
+                size = Integer.parseInt(value);
+            }
+            else if (arg.equals("--runs")) {
+                runs = Math.max(1, Integer.parseInt(value));
+            }
+            else if (arg.equals("--threads")) {
+                threads = Math.max(1, Integer.parseInt(value));
+            }
+            else if (arg.equals("--java-timeout")) {
+                javaTimeout = Long.parseLong(value);
+            }
+            else if (arg.equals("--out")) {
+                outFile = value;
+            }
+            else {
+                System.out.println("Unknown option " + arg);
+
+                System.exit(0);
+            }
+        }
+
+        List<Case> cases = new ArrayList<Case>();
+        if (regex != null) {
+            cases.add(new Case("regex", regex));
+        }
+        else {
+            if (suite.equals("log") || suite.equals("all")) {
+                cases.addAll(logCases());
+            }
+            if (suite.equals("adversarial") || suite.equals("all")) {
+                cases.addAll(adversarialCases(size));
+            }
+            if (suite.equals("spans") || suite.equals("all")) {
+                cases.addAll(spanCases());
+            }
+        }
+
+        String results = outFile;
+        GraphexBenchmark benchmark = new GraphexBenchmark(lines, lineLength, density, seed, find, runs, threads,
+                javaTimeout, Paths.get(System.getProperty("java.io.tmpdir")));
+
+        // The parser and both engines recurse on deep regular expressions, so a large stack is used
+        Thread worker = new Thread(null, () -> {
+            try (PrintStream out = results == null ? null : new PrintStream(new FileOutputStream(results, true))) {
+                // Results are also added to the end of the file so runs can be tracked
+                for (Case c : cases) {
+                    String result = benchmark.run(c);
+                    System.out.println(result);
+                    if (out != null) {
+                        out.println(result);
+                        out.flush();
+                    }
+                }
+            }
+            catch (IOException e) {
+                System.out.println("Problem writing or reading the corpus");
+            }
+        }, "benchmark", 1L << 30);
+
+        worker.start();
+        try {
+            worker.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Send a scan to a running GraphexServer
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * Sends one request to a GraphexServer and prints what it answers, so a
+ * scan prints the same as running the program but without compiling the
+ * pattern again. Files are sent as absolute paths for the server to read,
+ * a file named - sends standard input to be scanned instead
+ */
+public final class GraphexClient {
+    /**
+     * Constructor for GraphexClient, it only has static methods
+     */
+    private GraphexClient() {
+    }
+
+    /**
+     * @param args the options then the regular expression and the files
+     */
+    public static void main(String[] args) {
+        Path socket = GraphexServer.DEFAULT_SOCKET;
+        int port = 0;
+        List<String> request = new ArrayList<String>();
+        boolean stdin = false;
+        int i = 0;
+
+        // Read the options that come before the regular expression
+        while (i < args.length && args[i].startsWith("-") && !args[i].equals("-")) {
+            if (args[i].equals("--socket") && i + 1 < args.length) {
+                socket = Paths.get(args[i + 1]);
+                i += 2;
+            }
+            else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Graphex.intOrExit(args[i], args[i + 1]);
+                if (port < 0 || port > 65535) {
+                    System.out.println("Invalid value for " + args[i]);
+
+                    System.exit(0);
+                }
+                socket = null;
+                i += 2;
+            }
+            // Use a pattern the server already compiled instead of a regular expression
+            else if (args[i].equals("--pattern") && i + 1 < args.length) {
+                request.add("pattern " + args[i + 1]);
+                i += 2;
+            }
+            // Only compile the pattern and print its id
+            else if (args[i].equals("--compile") && i + 1 < args.length) {
+                request.add("compile " + args[i + 1]);
+                i += 2;
+            }
+            else if (args[i].equals("--find")) {
+                request.add("find");
+                i++;
+            }
+            else if (args[i].equals("-r")) {
+                request.add("recursive");
+                i++;
+            }
+            else if (args[i].equals("--shutdown")) {
+                request.add("shutdown");
+                i++;
+            }
+            else {
+                System.out.println("Unknown option " + args[i]);
+
+                System.exit(0);
+            }
+        }
+
+        // Then the regular expression unless a pattern id was given, then the files
+        boolean named = request.stream().anyMatch(r -> r.startsWith("pattern ") || r.startsWith("compile ")
+                || r.equals("shutdown"));
+        if (!named) {
+            if (i >= args.length) {
+                System.out.println("No commands given");
+
+                System.exit(0);
+            }
+            request.add("regex " + args[i++]);
+        }
+        for (; i < args.length; i++) {
+            if (args[i].equals("-")) {
+                stdin = true;
+            }
+            else {
+                request.add("file " + Paths.get(args[i]).toAbsolutePath());
+            }
+        }
+        if (stdin) {
+            request.add("data");
+        }
+
+        try (SocketChannel channel = socket != null
+                ? SocketChannel.open(UnixDomainSocketAddress.of(socket))
+                : SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            send(channel, request, stdin);
+        }
+        catch (IOException e) {
+            System.out.println("Problem talking to the server");
+        }
+    }
+
+    /**
+     * Sends the request then prints the answer as it arrives
+     * Standard input is sent on another thread since the answer for the
+     * first lines can arrive before the last ones are sent
+     * @param channel the connection
+     * @param request the lines of the request
+     * @param stdin true if standard input is sent after the request
+     * @throws IOException if the connection fails
+     */
+    private static void send(SocketChannel channel, List<String> request, boolean stdin) throws IOException {
+        OutputStream out = GraphexServer.outputOf(channel);
+        StringBuilder header = new StringBuilder();
+        for (String line : request) {
+            header.append(line).append('\n');
+        }
+        header.append('\n');
+        out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+
+        Thread sender = null;
+        if (stdin) {
+            sender = new Thread(() -> {
+                try {
+                    System.in.transferTo(out);
+                    channel.shutdownOutput();
+                }
+                catch (IOException e) {
+                    // The answer says what went wrong
+                }
+            });
+            sender.setDaemon(true);
+            sender.start();
+        }
+        else {
+            channel.shutdownOutput();
+        }
+
+        GraphexServer.inputOf(channel).transferTo(System.out);
+        System.out.flush();
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Match a compiled regular expression against text for use as a library
+ */
+
+
+package graphex;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+
+/**
+ * Matches a GraphexPattern against a region of a CharSequence, a char array
+ * or a byte array. A matcher is reset onto each new input without copying
+ * it, so nothing is allocated once the matcher exists. Bytes are read one
+ * character each as ISO-8859-1, so for UTF-8 text only the ASCII characters
+ * line up with the pattern. A matcher is not thread safe, each thread
+ * should use its own
+ */
+public final class GraphexMatcher {
+    private final GraphexPattern owner;
+    private final CompiledPattern pattern;
+    private NfaPattern.Threads threads;
+    private final SpanFinder.Starts starts = new SpanFinder.Starts();
+    private final ArrayChars chars = new ArrayChars();
+    private final ArrayChars bytes = new ArrayChars();
+
+    private CharSequence text = "";
+    private int regionStart = 0;
+    private int regionEnd = 0;
+    private int position = 0;
+    private int matchStart = -1;
+    private int matchEnd = -1;
+
+    /**
+     * Constructor for GraphexMatcher
+     * @param owner the pattern matched with
+     */
+    GraphexMatcher(GraphexPattern owner) {
+        this.owner = owner;
+        this.pattern = owner.compiled();
+    }
+
+    /**
+     * @return the pattern matched with
+     */
+    public GraphexPattern pattern() {
+        return this.owner;
+    }
+
+    /**
+     * Matches against all of a text from now on
+     * @param text the text
+     * @return this matcher
+     */
+    public GraphexMatcher reset(CharSequence text) {
+        return reset(text, 0, text.length());
+    }
+
+    /**
+     * Matches against part of a text from now on
+     * @param text the text
+     * @param offset the first character
+     * @param length the number of characters
+     * @return this matcher
+     * @throws IndexOutOfBoundsException if the part is not inside the text
+     */
+    public GraphexMatcher reset(CharSequence text, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, text.length());
+        return region(text, offset, length);
+    }
+
+    /**
+     * Matches against part of a char array from now on, the array is not copied
+     * @param text the characters
+     * @param offset the first character
+     * @param length the number of characters
+     * @return this matcher
+     * @throws IndexOutOfBoundsException if the part is not inside the array
+     */
+    public GraphexMatcher reset(char[] text, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, text.length);
+        this.chars.set(text, null);
+        return region(this.chars, offset, length);
+    }
+
+    /**
+     * Matches against part of a byte array from now on, each byte is one
+     * character. The array is not copied
+     * @param text the bytes
+     * @param offset the first byte
+     * @param length the number of bytes
+     * @return this matcher
+     * @throws IndexOutOfBoundsException if the part is not inside the array
+     */
+    public GraphexMatcher reset(byte[] text, int offset, int length) {
+        Objects.checkFromIndexSize(offset, length, text.length);
+        this.bytes.set(null, text);
+        return region(this.bytes, offset, length);
+    }
+
+    /**
+     * Goes back to the start of the current input
+     * @return this matcher
+     */
+    public GraphexMatcher reset() {
+        this.position = this.regionStart;
+        this.matchStart = -1;
+        this.matchEnd = -1;
+        return this;
+    }
+
+    /**
+     * @param text the input
+     * @param offset the first character
+     * @param length the number of characters
+     * @return this matcher
+     */
+    private GraphexMatcher region(CharSequence text, int offset, int length) {
+        this.starts.clear();
+        this.text = text;
+        this.regionStart = offset;
+        this.regionEnd = offset + length;
+        return reset();
+    }
+
+    /**
+     * Checks if the whole of the input matches
+     * @return true if it matches, then the match is the whole input
+     */
+    public boolean matches() {
+        boolean matched;
+        JitMatcher jit = this.pattern != null ? this.pattern.getJit() : null;
+        if (this.pattern == null) {
+            // The DFA was over the StateBudget so the NFA is simulated
+            matched = this.owner.simulated().matches(threads(), this.text, this.regionStart, this.regionEnd);
+        }
+        else if (jit != null) {
+            matched = jit.matches(this.text, this.regionStart, this.regionEnd);
+        }
+        else {
+            CompiledPattern p = this.pattern;
+            int state = p.getStart();
+            for (int i = this.regionStart; i < this.regionEnd && state != CompiledPattern.DEAD_STATE; i++) {
+                state = p.next(state, this.text.charAt(i));
+            }
+            matched = p.isAccepting(state);
+        }
+
+        return found(matched, this.regionStart, this.regionEnd);
+    }
+
+    /**
+     * Checks if the start of the input matches, the longest match is taken
+     * @return true if some start of the input matches
+     */
+    public boolean lookingAt() {
+        if (this.pattern == null) {
+            int end = this.owner.simulated().longest(threads(), this.text, this.regionStart, this.regionEnd);
+            return found(end != -1, this.regionStart, end);
+        }
+
+        CompiledPattern p = this.pattern;
+        int state = p.getStart();
+        int end = p.isAccepting(state) ? this.regionStart : -1;
+
+        for (int i = this.regionStart; i < this.regionEnd && state != CompiledPattern.DEAD_STATE; i++) {
+            state = p.next(state, this.text.charAt(i));
+            if (p.isAccepting(state)) {
+                end = i + 1;
+            }
+        }
+
+        return found(end != -1, this.regionStart, end);
+    }
+
+    /**
+     * Finds the next match after the last one, like --find matches do not
+     * overlap, start as early as they can and are then as long as they can be.
+     * Empty matches are passed over
+     * @return true if there is another match
+     */
+    public boolean find() {
+        SpanFinder finder = this.owner.finder();
+
+        while (this.position <= this.regionEnd) {
+            long span = finder != null ? finder.find(this.starts, this.text, this.position, this.regionEnd)
+                    : this.owner.simulated().find(threads(), this.text, this.position, this.regionEnd);
+            if (span == -1) {
+                break;
+            }
+
+            int start = SpanFinder.start(span);
+            int end = SpanFinder.end(span);
+            if (end > start) {
+                this.position = end;
+                return found(true, start, end);
+            }
+            this.position = end + 1;
+        }
+
+        this.position = this.regionEnd + 1;
+        return found(false, -1, -1);
+    }
+
+    /**
+     * Counts the matches find would give from the start of the input, the
+     * matcher is then left after the last one
+     * @return the number of matches
+     */
+    public int count() {
+        reset();
+
+        int count = 0;
+        while (find()) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return the first character of the last match
+     * @throws IllegalStateException if the last attempt did not match
+     */
+    public int start() {
+        if (this.matchStart == -1) {
+            throw new IllegalStateException("No match");
+        }
+        return this.matchStart;
+    }
+
+    /**
+     * @return one past the last character of the last match
+     * @throws IllegalStateException if the last attempt did not match
+     */
+    public int end() {
+        if (this.matchStart == -1) {
+            throw new IllegalStateException("No match");
+        }
+        return this.matchEnd;
+    }
+
+    /**
+     * @return the scratch space for simulating the NFA, it is made the first time
+     */
+    private NfaPattern.Threads threads() {
+        if (this.threads == null) {
+            this.threads = this.owner.simulated().threads();
+        }
+        return this.threads;
+    }
+
+    /**
+     * Keeps the result of a match
+     * @param matched true if it matched
+     * @param start the first character of the match
+     * @param end one past the last character of the match
+     * @return matched
+     */
+    private boolean found(boolean matched, int start, int end) {
+        this.matchStart = matched ? start : -1;
+        this.matchEnd = matched ? end : -1;
+        return matched;
+    }
+
+    /**
+     * A char or byte array seen as characters, it is pointed at each new
+     * array so a reset does not allocate
+     */
+    private static final class ArrayChars implements CharSequence {
+        private char[] chars;
+        private byte[] bytes;
+
+        void set(char[] chars, byte[] bytes) {
+            this.chars = chars;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return this.chars != null ? this.chars[index] : (char) (this.bytes[index] & 0xff);
+        }
+
+        @Override
+        public int length() {
+            return this.chars != null ? this.chars.length : this.bytes.length;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return this.chars != null ? new String(this.chars) : new String(this.bytes, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
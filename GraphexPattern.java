@@ -0,0 +1,160 @@
+/*
+ * A compiled regular expression for use as a library
+ */
+
+
+package graphex;
+
+
+/**
+ * A regular expression compiled once and then used to make any number of
+ * matchers. A pattern is immutable so it can be shared by every thread,
+ * each thread or task should use its own GraphexMatcher. The DFAs needed to
+ * find matches inside a text are only built the first time a matcher finds.
+ * A pattern whose DFA would go over the StateBudget is matched by simulating
+ * its NFA instead, engine() says which is used
+ */
+public final class GraphexPattern {
+    private final String regex;
+    private final DFA dfa;
+    private final CompiledPattern pattern;
+    private final NfaPattern nfa;
+    private volatile SpanFinder finder;
+    private volatile boolean reverseTooLarge;
+
+    /**
+     * Constructor for GraphexPattern
+     * @param regex the regular expression
+     * @param dfa the DFA of the regular expression, or null if it is over the StateBudget
+     * @param nfa the NFA of the regular expression
+     */
+    private GraphexPattern(String regex, DFA dfa, NfaPattern nfa) {
+        this.regex = regex;
+        this.dfa = dfa;
+        this.pattern = dfa != null ? dfa.compile() : null;
+        this.nfa = nfa;
+    }
+
+    /**
+     * Parses and compiles a regular expression
+     * @param regex the regular expression
+     * @return the pattern
+     * @throws RegexSyntaxException if the regular expression is not valid
+     */
+    public static GraphexPattern compile(String regex) {
+        return compile(regex, new RegexParser(regex).parse());
+    }
+
+    /**
+     * Compiles a regular expression that is already parsed
+     * @param regex the regular expression as it was written
+     * @param parsed the parsed regular expression
+     * @return the pattern
+     */
+    static GraphexPattern compile(String regex, Regex parsed) {
+        NFA nfa = Graphex.toNFA(parsed);
+        NfaPattern simulated = new NfaPattern(nfa);
+
+        DFA dfa = null;
+        try {
+            dfa = nfa.nfaToDFA();
+        }
+        catch (StateBudgetException e) {
+            GraphexStats.nfaFallback();
+        }
+        return new GraphexPattern(regex, dfa, simulated);
+    }
+
+    /**
+     * @return a new matcher with no input, it is reset before it is used
+     */
+    public GraphexMatcher matcher() {
+        return new GraphexMatcher(this);
+    }
+
+    /**
+     * @param text the text
+     * @return a new matcher over all of the text
+     */
+    public GraphexMatcher matcher(CharSequence text) {
+        return new GraphexMatcher(this).reset(text);
+    }
+
+    /**
+     * @return the regular expression the pattern was compiled from
+     */
+    public String pattern() {
+        return this.regex;
+    }
+
+    /**
+     * @return "dfa" if the pattern is matched with its DFA, or "nfa" if the
+     * DFA was over the StateBudget and the NFA is simulated
+     */
+    public String engine() {
+        return this.pattern != null ? "dfa" : "nfa";
+    }
+
+    /**
+     * @return the compiled forward DFA, or null if the NFA is used
+     */
+    CompiledPattern compiled() {
+        return this.pattern;
+    }
+
+    /**
+     * @return the NFA, used when there is no DFA
+     */
+    NfaPattern simulated() {
+        return this.nfa;
+    }
+
+    /**
+     * Builds the reverse and unanchored DFAs the first time they are needed
+     * @return the finder of matches inside a text, or null if the NFA is
+     * used to find since one of the DFAs is over the StateBudget
+     */
+    SpanFinder finder() {
+        SpanFinder f = this.finder;
+        if (f == null && this.pattern != null && !this.reverseTooLarge) {
+            synchronized (this) {
+                f = this.finder;
+                if (f == null && !this.reverseTooLarge) {
+                    try {
+                        f = new SpanFinder(this.pattern, this.dfa.reverse().compile());
+                        this.finder = f;
+                    }
+                    catch (StateBudgetException e) {
+                        GraphexStats.nfaFallback();
+                        this.reverseTooLarge = true;
+                    }
+                }
+            }
+        }
+        return f;
+    }
+
+    /**
+     * Makes a scanner for files or streams with whichever engine the pattern uses
+     * @param find true to print every match inside each line
+     * @param threads the number of threads used for matching
+     * @param maxOpenFiles the most files that can be open at once
+     * @param recursive true if directories should be walked
+     * @return the scanner
+     */
+    FileScanner scanner(boolean find, int threads, int maxOpenFiles, boolean recursive) {
+        SpanFinder f = find ? finder() : null;
+        if (this.pattern == null || (find && f == null)) {
+            return new FileScanner(this.nfa, find, threads, maxOpenFiles, recursive);
+        }
+        return new FileScanner(this.pattern, f, threads, maxOpenFiles, recursive);
+    }
+
+    /**
+     * @return the regular expression
+     */
+    @Override
+    public String toString() {
+        return this.regex;
+    }
+}
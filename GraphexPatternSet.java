@@ -0,0 +1,341 @@
+/*
+ * A set of regular expressions that can change while it is matched
+ */
+
+
+package graphex;
+
+import java.util.*;
+
+
+/**
+ * A set of regular expressions that patterns are added to and removed from
+ * one at a time. The patterns are kept in shards of a few each, and every
+ * shard is compiled into the DFA of the union of its patterns. Adding or
+ * removing a pattern only compiles the union of its own shard again, the
+ * other shards are kept as they are.
+ * Every change publishes a new Snapshot in one write. A snapshot never
+ * changes, so a scan that takes one keeps matching the same patterns
+ * however the set changes while it runs. Changes are made one at a time,
+ * snapshots can be matched by any number of threads
+ */
+public final class GraphexPatternSet {
+    /** The number of patterns in a shard when none is given */
+    public static final int DEFAULT_SHARD_SIZE = 16;
+
+    private final int shardSize;
+    private final List<Shard> shards = new ArrayList<Shard>();
+    private int nextId = 0;
+    private long version = 0;
+    private volatile Snapshot current = new Snapshot(0, new Shard[0]);
+
+    /**
+     * Constructor for GraphexPatternSet with shards of the default size
+     */
+    public GraphexPatternSet() {
+        this(DEFAULT_SHARD_SIZE);
+    }
+
+    /**
+     * Constructor for GraphexPatternSet
+     * Larger shards make matching faster since there are fewer DFAs to run,
+     * smaller ones make a change faster since less is compiled again
+     * @param shardSize the most patterns in one shard
+     * @throws IllegalArgumentException if the size is less than 1
+     */
+    public GraphexPatternSet(int shardSize) {
+        if (shardSize < 1) {
+            throw new IllegalArgumentException("The shard size must be at least 1");
+        }
+        this.shardSize = shardSize;
+    }
+
+    /**
+     * Adds a pattern to the first shard with room for it, or to a new shard
+     * @param regex the regular expression
+     * @return the id of the pattern, used to remove it
+     * @throws RegexSyntaxException if the regular expression is not valid, the set is not changed
+     */
+    public synchronized int add(String regex) {
+        Regex parsed = new RegexParser(regex).parse();
+        Member member = new Member(this.nextId, regex, parsed);
+        this.nextId++;
+
+        for (int i = 0; i < this.shards.size(); i++) {
+            Shard shard = this.shards.get(i);
+            if (shard.members.length < this.shardSize) {
+                this.shards.set(i, shard.with(member));
+                publish();
+                return member.id;
+            }
+        }
+
+        this.shards.add(new Shard(new Member[] { member }));
+        publish();
+        return member.id;
+    }
+
+    /**
+     * Removes a pattern, a shard left empty is dropped
+     * @param id the id from add
+     * @return true if the pattern was in the set
+     */
+    public synchronized boolean remove(int id) {
+        for (int i = 0; i < this.shards.size(); i++) {
+            Shard shard = this.shards.get(i);
+            int index = shard.indexOf(id);
+            if (index == -1) {
+                continue;
+            }
+
+            if (shard.members.length == 1) {
+                this.shards.remove(i);
+            }
+            else {
+                this.shards.set(i, shard.without(index));
+            }
+            publish();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the patterns as they are now, it does not change when the set does
+     */
+    public Snapshot snapshot() {
+        return this.current;
+    }
+
+    /**
+     * Makes the shards as they are now the current snapshot
+     */
+    private void publish() {
+        this.version++;
+        this.current = new Snapshot(this.version, this.shards.toArray(new Shard[0]));
+    }
+
+    /**
+     * The patterns of the set at one moment. It is immutable, so it can be
+     * matched by any number of threads while the set changes
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final Shard[] shards;
+
+        /**
+         * Constructor for Snapshot
+         * @param version the number of changes made to the set
+         * @param shards the shards, they are not copied
+         */
+        private Snapshot(long version, Shard[] shards) {
+            this.version = version;
+            this.shards = shards;
+        }
+
+        /**
+         * @return the number of changes made to the set before this snapshot
+         */
+        public long version() {
+            return this.version;
+        }
+
+        /**
+         * @return the number of patterns
+         */
+        public int size() {
+            int size = 0;
+            for (Shard shard : this.shards) {
+                size += shard.members.length;
+            }
+            return size;
+        }
+
+        /**
+         * @return the ids of every pattern, in the order they were added
+         */
+        public int[] ids() {
+            int[] ids = new int[size()];
+            int n = 0;
+            for (Shard shard : this.shards) {
+                for (Member member : shard.members) {
+                    ids[n++] = member.id;
+                }
+            }
+            Arrays.sort(ids);
+            return ids;
+        }
+
+        /**
+         * @param id the id of a pattern
+         * @return its regular expression, or null if it is not in this snapshot
+         */
+        public String regex(int id) {
+            for (Shard shard : this.shards) {
+                int index = shard.indexOf(id);
+                if (index != -1) {
+                    return shard.members[index].regex;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Checks if any of the patterns matches all of a text, each shard is
+         * matched once with the DFA of its union
+         * @param text the text
+         * @return true if some pattern matches
+         */
+        public boolean matches(CharSequence text) {
+            for (Shard shard : this.shards) {
+                if (matchesAll(shard.union, text)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Finds which patterns match all of a text. Only the patterns of the
+         * shards whose union matches are tried one by one
+         * @param text the text
+         * @return the ids of the patterns that match, in the order they were added
+         */
+        public int[] matching(CharSequence text) {
+            int[] ids = new int[0];
+            int n = 0;
+
+            for (Shard shard : this.shards) {
+                if (!matchesAll(shard.union, text)) {
+                    continue;
+                }
+                for (Member member : shard.members) {
+                    if (matchesAll(member.pattern, text)) {
+                        if (n == ids.length) {
+                            ids = Arrays.copyOf(ids, Math.max(4, n * 2));
+                        }
+                        ids[n++] = member.id;
+                    }
+                }
+            }
+
+            ids = Arrays.copyOf(ids, n);
+            Arrays.sort(ids);
+            return ids;
+        }
+
+        /**
+         * @param pattern a pattern
+         * @param text the text
+         * @return true if the pattern matches all of the text
+         */
+        private static boolean matchesAll(GraphexPattern pattern, CharSequence text) {
+            CompiledPattern p = pattern.compiled();
+            if (p == null) {
+                return pattern.matcher(text).matches();
+            }
+
+            JitMatcher jit = p.getJit();
+            if (jit != null) {
+                return jit.matches(text, 0, text.length());
+            }
+
+            int state = p.getStart();
+            for (int i = 0; i < text.length() && state != CompiledPattern.DEAD_STATE; i++) {
+                state = p.next(state, text.charAt(i));
+            }
+            return p.isAccepting(state);
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot version = " + this.version + " patterns = " + size() + " shards = " + this.shards.length;
+        }
+    }
+
+    /**
+     * One pattern of the set, compiled on its own so the patterns of a
+     * matching shard can be told apart
+     */
+    private static final class Member {
+        final int id;
+        final String regex;
+        final Regex parsed;
+        final GraphexPattern pattern;
+
+        Member(int id, String regex, Regex parsed) {
+            this.id = id;
+            this.regex = regex;
+            this.parsed = parsed;
+            this.pattern = GraphexPattern.compile(regex, parsed);
+        }
+    }
+
+    /**
+     * A few patterns and the DFA of their union, a change makes a new shard
+     */
+    private static final class Shard {
+        final Member[] members;
+        final GraphexPattern union;
+
+        Shard(Member[] members) {
+            this.members = members;
+
+            StringBuilder regex = new StringBuilder();
+            for (Member member : members) {
+                regex.append(regex.length() == 0 ? "(" : "|(").append(member.regex).append(')');
+            }
+
+            // The union is built as a balanced tree so it is not deeper than it needs to be
+            this.union = GraphexPattern.compile(regex.toString(), union(members, 0, members.length));
+        }
+
+        /**
+         * @param members the patterns
+         * @param from the first one in the union
+         * @param to one past the last one in the union
+         * @return the union of the parsed patterns
+         */
+        private static Regex union(Member[] members, int from, int to) {
+            if (to - from == 1) {
+                return members[from].parsed;
+            }
+            int middle = (from + to) >>> 1;
+            return new Union(union(members, from, middle), union(members, middle, to));
+        }
+
+        /**
+         * @param member a new pattern
+         * @return this shard with the pattern added
+         */
+        Shard with(Member member) {
+            Member[] added = Arrays.copyOf(this.members, this.members.length + 1);
+            added[this.members.length] = member;
+            return new Shard(added);
+        }
+
+        /**
+         * @param index the place of a pattern in the shard
+         * @return this shard without the pattern
+         */
+        Shard without(int index) {
+            Member[] removed = new Member[this.members.length - 1];
+            System.arraycopy(this.members, 0, removed, 0, index);
+            System.arraycopy(this.members, index + 1, removed, index, removed.length - index);
+            return new Shard(removed);
+        }
+
+        /**
+         * @param id the id of a pattern
+         * @return its place in the shard, or -1 if it is not in it
+         */
+        int indexOf(int id) {
+            for (int i = 0; i < this.members.length; i++) {
+                if (this.members[i].id == id) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,609 @@
+/*
+ * Keep compiled patterns in memory and scan for clients
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A daemon that keeps compiled patterns in memory so a scan does not pay for
+ * starting the JVM and compiling the pattern again. It listens on a Unix
+ * domain socket or a loopback port and takes one request per connection.
+ * The socket can only be used by the user that started the server, a port
+ * can be used by anyone on the machine
+ * A request is lines of UTF-8 ended by an empty line:
+ *     regex r       the regular expression, it is compiled once and kept
+ *     pattern id    or a pattern kept by an earlier compile request
+ *     find          print every match inside each line
+ *     recursive     walk any directories given
+ *     file path     a file or directory to scan, can be given more than once
+ *     data          scan the bytes sent after the empty line instead of files
+ *     compile r     compile a pattern and answer "pattern id engine"
+ *     shutdown      finish the running scans then stop
+ * The answer is exactly what the program would print, sent as it is found.
+ * Only a limited number of scans run at once, a few more wait for their turn
+ * and any more are told the server is busy. The request lines are limited in
+ * size, and a client that sends or reads nothing for too long is dropped
+ */
+public final class GraphexServer {
+    /** The socket used when none is given, one for each user */
+    static final Path DEFAULT_SOCKET = Paths.get(System.getProperty("java.io.tmpdir"),
+            "graphex-" + System.getProperty("user.name") + ".sock");
+
+    /** The most bytes the lines of a request can take, with their line ends */
+    static final int MAX_REQUEST = 1024 * 1024;
+
+    private final ServerSocketChannel server;
+    private final Path socket;
+    private final ThreadPoolExecutor scans;
+    private final int threads;
+    private final int maxPatterns;
+    private final long idleMillis;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(FileScanner.daemonThreads());
+    private final Map<String, Entry> byRegex;
+    private final Map<Integer, Entry> byId = new HashMap<Integer, Entry>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean running = true;
+
+    /**
+     * A compiled pattern and the scanners made from it
+     */
+    private static final class Entry {
+        final int id;
+        final GraphexPattern pattern;
+        private final FileScanner[] scanners = new FileScanner[4];
+
+        Entry(int id, GraphexPattern pattern) {
+            this.id = id;
+            this.pattern = pattern;
+        }
+
+        /**
+         * @param find true to print every match inside each line
+         * @param recursive true if directories should be walked
+         * @param threads the number of threads used for matching
+         * @return the scanner, it is made the first time
+         */
+        synchronized FileScanner scanner(boolean find, boolean recursive, int threads) {
+            int i = (find ? 2 : 0) + (recursive ? 1 : 0);
+            if (this.scanners[i] == null) {
+                this.scanners[i] = this.pattern.scanner(find, threads, 64, recursive);
+            }
+            return this.scanners[i];
+        }
+    }
+
+    /**
+     * Constructor for GraphexServer, it starts listening straight away
+     * @param socket the Unix domain socket, or null to use the port
+     * @param port the loopback port used when there is no socket
+     * @param maxScans the most scans that run at once
+     * @param maxQueued the most requests that wait for a scan to finish
+     * @param maxPatterns the most compiled patterns kept
+     * @param threads the number of threads each scan matches files with
+     * @param idleMillis how long a client can send or read nothing before it is dropped
+     * @throws IOException if the socket cannot be opened
+     */
+    public GraphexServer(Path socket, int port, int maxScans, int maxQueued, int maxPatterns, int threads,
+            long idleMillis) throws IOException {
+        if (socket != null) {
+            Files.deleteIfExists(socket);
+            this.server = bindPrivate(socket);
+        }
+        else {
+            this.server = ServerSocketChannel.open();
+            this.server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+
+        this.socket = socket;
+        this.threads = threads;
+        this.maxPatterns = maxPatterns;
+        this.idleMillis = idleMillis;
+        this.scans = new ThreadPoolExecutor(maxScans, maxScans, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)), FileScanner.daemonThreads());
+
+        // The least recently used pattern is dropped when there are too many
+        this.byRegex = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > GraphexServer.this.maxPatterns) {
+                    byId.remove(eldest.getValue().id);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Opens a Unix domain socket only its owner can connect to
+     * It is bound inside a new directory only the owner can enter, made owner
+     * only, then moved into place, so nobody can connect before that
+     * @param socket where the socket goes
+     * @return the channel
+     * @throws IOException if the socket cannot be made
+     */
+    private static ServerSocketChannel bindPrivate(Path socket) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        Path parent = socket.toAbsolutePath().getParent();
+
+        // Without POSIX permissions the directory the socket is in has to protect it
+        if (!Files.getFileStore(parent).supportsFileAttributeView(PosixFileAttributeView.class)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            return server;
+        }
+
+        Path directory = Files.createTempDirectory(parent, ".graphex",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path bound = directory.resolve("socket");
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            server.close();
+            throw e;
+        }
+        finally {
+            Files.deleteIfExists(bound);
+            Files.delete(directory);
+        }
+        return server;
+    }
+
+    /**
+     * Accepts connections until the server is stopped
+     */
+    public void serve() {
+        try {
+            while (this.running) {
+                SocketChannel client;
+                try {
+                    client = this.server.accept();
+                }
+                catch (IOException e) {
+                    // The channel is closed by stop
+                    break;
+                }
+
+                try {
+                    this.scans.execute(() -> handle(client));
+                }
+                catch (RejectedExecutionException e) {
+                    refuse(client, "Server busy");
+                }
+            }
+        }
+        finally {
+            this.stopped.countDown();
+        }
+    }
+
+    /**
+     * Stops taking requests and waits for the running scans to finish
+     * @param graceMillis the longest time to wait for the scans
+     */
+    public void stop(long graceMillis) {
+        this.running = false;
+        try {
+            this.server.close();
+        }
+        catch (IOException e) {
+            // It is being closed anyway
+        }
+
+        this.scans.shutdown();
+        this.timer.shutdown();
+        try {
+            if (!this.scans.awaitTermination(graceMillis, TimeUnit.MILLISECONDS)) {
+                this.scans.shutdownNow();
+            }
+            this.stopped.await(graceMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (this.socket != null) {
+            try {
+                Files.deleteIfExists(this.socket);
+            }
+            catch (IOException e) {
+                // Nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * @return the address the server listens on
+     * @throws IOException if the channel is closed
+     */
+    public SocketAddress getAddress() throws IOException {
+        // The socket was bound under another name then moved
+        if (this.socket != null) {
+            return UnixDomainSocketAddress.of(this.socket);
+        }
+        return this.server.getLocalAddress();
+    }
+
+    /**
+     * Reads one request and answers it
+     * @param client the connection, it is closed at the end
+     */
+    private void handle(SocketChannel client) {
+        try (SocketChannel channel = client) {
+            ByteChannel timed = idleTimeout(channel);
+            InputStream in = new BufferedInputStream(inputOf(timed));
+            PrintStream out = new PrintStream(new BufferedOutputStream(outputOf(timed)), false, "UTF-8");
+
+            String regex = null;
+            Integer id = null;
+            String compile = null;
+            boolean find = false;
+            boolean recursive = false;
+            boolean data = false;
+            boolean shutdown = false;
+            List<String> files = new ArrayList<String>();
+
+            String line;
+            int left = MAX_REQUEST;
+            while ((line = readLine(in, left)) != null && !line.isEmpty()) {
+                // Room is kept for the empty line at the end, a line that took
+                // the rest was cut off
+                int length = line.getBytes(StandardCharsets.UTF_8).length;
+                if (length + 1 >= left) {
+                    out.println("Request too long");
+                    out.flush();
+                    return;
+                }
+                left -= length + 1;
+
+                int space = line.indexOf(' ');
+                String name = space == -1 ? line : line.substring(0, space);
+                String value = space == -1 ? "" : line.substring(space + 1);
+
+                if (name.equals("regex")) {
+                    regex = value;
+                }
+                else if (name.equals("pattern")) {
+                    try {
+                        id = Integer.parseInt(value);
+                    }
+                    catch (NumberFormatException e) {
+                        id = -1;
+                    }
+                }
+                else if (name.equals("compile")) {
+                    compile = value;
+                }
+                else if (name.equals("find")) {
+                    find = true;
+                }
+                else if (name.equals("recursive")) {
+                    recursive = true;
+                }
+                else if (name.equals("file")) {
+                    files.add(value);
+                }
+                else if (name.equals("data")) {
+                    data = true;
+                }
+                else if (name.equals("shutdown")) {
+                    shutdown = true;
+                }
+                else {
+                    out.println("Unknown request " + name);
+                    out.flush();
+                    return;
+                }
+            }
+
+            if (shutdown) {
+                out.println("Shutting down");
+                out.flush();
+                // Stopping waits for this scan, so it is done on its own thread
+                Thread stopper = new Thread(() -> stop(60000));
+                stopper.setDaemon(true);
+                stopper.start();
+                return;
+            }
+
+            if (compile != null) {
+                Entry entry = entry(compile);
+                out.println(entry == null ? "Invalid regex" : "pattern " + entry.id + " " + entry.pattern.engine());
+                out.flush();
+                return;
+            }
+
+            Entry entry;
+            if (id != null) {
+                synchronized (this.byRegex) {
+                    entry = this.byId.get(id);
+                }
+                if (entry == null) {
+                    out.println("Unknown pattern " + id);
+                    out.flush();
+                    return;
+                }
+            }
+            else if (regex != null) {
+                entry = entry(regex);
+                if (entry == null) {
+                    out.println("Invalid regex");
+                    out.flush();
+                    return;
+                }
+            }
+            else {
+                out.println("No regular expression given");
+                out.flush();
+                return;
+            }
+
+            FileScanner scanner = entry.scanner(find, recursive, this.threads);
+            if (data) {
+                scanner.scan(in, out, "");
+            }
+            else if (files.isEmpty()) {
+                out.println("No input file given");
+            }
+            else {
+                scanner.scan(FileScanner.collectFiles(files, recursive, out), out);
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            // The client went away, there is nobody to tell
+        }
+    }
+
+    /**
+     * Gets a kept pattern or compiles it
+     * @param regex the regular expression
+     * @return the pattern, or null if the regular expression is not valid
+     */
+    private Entry entry(String regex) {
+        synchronized (this.byRegex) {
+            Entry entry = this.byRegex.get(regex);
+            if (entry != null) {
+                return entry;
+            }
+        }
+
+        // Compiling can take a while so other requests are not held up by it
+        GraphexPattern pattern;
+        try {
+            pattern = GraphexPattern.compile(regex);
+        }
+        catch (RegexSyntaxException e) {
+            return null;
+        }
+
+        synchronized (this.byRegex) {
+            Entry entry = this.byRegex.get(regex);
+            if (entry == null) {
+                entry = new Entry(this.nextId.getAndIncrement(), pattern);
+                this.byRegex.put(regex, entry);
+                this.byId.put(entry.id, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Tells a client it was not served then closes it
+     * @param client the connection
+     * @param message why
+     */
+    private static void refuse(SocketChannel client, String message) {
+        try (SocketChannel channel = client) {
+            channel.write(ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    /**
+     * Makes reads and writes on a connection give up once the client has
+     * sent or read nothing for the idle time, the connection is closed then
+     * @param channel the connection
+     * @return the connection with the timeout
+     */
+    private ByteChannel idleTimeout(SocketChannel channel) {
+        return new ByteChannel() {
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                ScheduledFuture<?> timeout = closeLater(channel);
+                try {
+                    return channel.read(buffer);
+                }
+                finally {
+                    timeout.cancel(false);
+                }
+            }
+
+            @Override
+            public int write(ByteBuffer buffer) throws IOException {
+                ScheduledFuture<?> timeout = closeLater(channel);
+                try {
+                    return channel.write(buffer);
+                }
+                finally {
+                    timeout.cancel(false);
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * @param channel a connection
+     * @return the timer that closes it after the idle time unless it is cancelled
+     */
+    private ScheduledFuture<?> closeLater(SocketChannel channel) {
+        return this.timer.schedule(() -> {
+            try {
+                channel.close();
+            }
+            catch (IOException e) {
+                // It is closed either way
+            }
+        }, this.idleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads a line of UTF-8 without reading past it
+     * @param in the stream
+     * @param max the most bytes read, a line this long is cut off there
+     * @return the line without its end, or null at the end of the stream
+     * @throws IOException if the stream fails
+     */
+    static String readLine(InputStream in, int max) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b = 0;
+        while (line.size() < max && (b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        if (b == -1 && line.size() == 0) {
+            return null;
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The streams of Channels lock the channel while they wait, so a
+     * channel that is read and written at the same time uses these instead
+     * @param channel a blocking channel
+     * @return a stream reading from it
+     */
+    static InputStream inputOf(ByteChannel channel) {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(b, off, len));
+            }
+        };
+    }
+
+    /**
+     * @param channel a blocking channel
+     * @return a stream writing to it
+     */
+    static OutputStream outputOf(ByteChannel channel) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs the server until it is asked to shut down or the JVM is stopped
+     * @param args --socket path, --port n, --max-scans n, --max-queued n,
+     *        --cache n, --threads n and --idle-timeout seconds
+     */
+    public static void main(String[] args) {
+        Path socket = DEFAULT_SOCKET;
+        int port = 0;
+        int maxScans = Runtime.getRuntime().availableProcessors();
+        int maxQueued = 64;
+        int maxPatterns = 64;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int idleSeconds = 60;
+
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--socket")) {
+                socket = Paths.get(args[i + 1]);
+            }
+            else if (args[i].equals("--port")) {
+                port = Graphex.intOrExit(args[i], args[i + 1]);
+                if (port < 0 || port > 65535) {
+                    System.out.println("Invalid value for " + args[i]);
+
+                    System.exit(0);
+                }
+                socket = null;
+            }
+            else if (args[i].equals("--max-scans")) {
+                maxScans = Math.max(1, Graphex.intOrExit(args[i], args[i + 1]));
+            }
+            else if (args[i].equals("--max-queued")) {
+                maxQueued = Math.max(1, Graphex.intOrExit(args[i], args[i + 1]));
+            }
+            else if (args[i].equals("--cache")) {
+                maxPatterns = Math.max(1, Graphex.intOrExit(args[i], args[i + 1]));
+            }
+            else if (args[i].equals("--threads")) {
+                threads = Math.max(1, Graphex.intOrExit(args[i], args[i + 1]));
+            }
+            else if (args[i].equals("--idle-timeout")) {
+                idleSeconds = Math.max(1, Graphex.intOrExit(args[i], args[i + 1]));
+            }
+            else {
+                System.out.println("Unknown option " + args[i]);
+
+                System.exit(0);
+            }
+        }
+
+        GraphexServer server;
+        try {
+            server = new GraphexServer(socket, port, maxScans, maxQueued, maxPatterns, threads,
+                    TimeUnit.SECONDS.toMillis(idleSeconds));
+            System.out.println("Listening on " + server.getAddress());
+        }
+        catch (IOException e) {
+            System.out.println("Problem opening the socket");
+            return;
+        }
+
+        // Finish the running scans when the JVM is stopped
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(10000)));
+        server.serve();
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Counters for compiling and scanning
+ */
+
+
+package graphex;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+
+/**
+ * Keeps the counters for each stage of RegexParser, createNFA, nfaToDFA and
+ * scanning. Nothing is counted or timed until the counters are enabled, so
+ * when they are off each stage only checks one static flag. The flag is
+ * volatile so counters enabled by another thread are seen
+ */
+final class GraphexStats implements GraphexStatsMBean {
+    private static final GraphexStats INSTANCE = new GraphexStats();
+    private static volatile boolean enabled = false;
+
+    private final LongAdder patternsCompiled = new LongAdder();
+    private final LongAdder nfaStates = new LongAdder();
+    private final LongAdder dfaStates = new LongAdder();
+    private final LongAccumulator largestDfa = new LongAccumulator(Math::max, 0);
+    private final LongAdder nfaFallbacks = new LongAdder();
+    private final LongAdder jitFailures = new LongAdder();
+    private final LongAdder epsilonClosureCalls = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder nfaNanos = new LongAdder();
+    private final LongAdder determinizeNanos = new LongAdder();
+    private final LongAdder compileNanos = new LongAdder();
+    private final LongAdder tableBytes = new LongAdder();
+    private final LongAdder bytesScanned = new LongAdder();
+    private final LongAdder linesScanned = new LongAdder();
+    private final LongAdder matches = new LongAdder();
+    private final LongAdder scanNanos = new LongAdder();
+
+    static {
+        if (Boolean.getBoolean("graphex.stats")) {
+            enable();
+        }
+    }
+
+    /**
+     * Constructor for GraphexStats, there is only one
+     */
+    private GraphexStats() {
+    }
+
+    /**
+     * @return the counters
+     */
+    public static GraphexStats get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Turns the counters on and registers them with JMX
+     * This should be called before any work starts
+     */
+    public static synchronized void enable() {
+        if (enabled) {
+            return;
+        }
+        enabled = true;
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(INSTANCE, GraphexStatsMBean.class), new ObjectName("graphex:type=Stats"));
+        }
+        catch (JMException e) {
+            System.err.println("Problem registering the stats with JMX");
+        }
+    }
+
+    /**
+     * @return true if the counters are on
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the time to measure from, or 0 if the counters are off
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records a regular expression being parsed
+     * @param start the time from start()
+     */
+    public static void parsed(long start) {
+        if (enabled) {
+            INSTANCE.parseNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Records a NFA being built
+     * @param start the time from start()
+     * @param states the number of states made
+     */
+    public static void nfaBuilt(long start, int states) {
+        if (enabled) {
+            INSTANCE.nfaNanos.add(System.nanoTime() - start);
+            INSTANCE.nfaStates.add(states);
+        }
+    }
+
+    /**
+     * Records a NFA being turned into a DFA
+     * @param start the time from start()
+     * @param states the number of DFA states made
+     */
+    public static void determinized(long start, int states) {
+        if (enabled) {
+            INSTANCE.determinizeNanos.add(System.nanoTime() - start);
+            INSTANCE.dfaStates.add(states);
+            INSTANCE.largestDfa.accumulate(states);
+            INSTANCE.patternsCompiled.increment();
+        }
+    }
+
+    /**
+     * Records a pattern that went over the StateBudget and is matched with its NFA
+     */
+    public static void nfaFallback() {
+        if (enabled) {
+            INSTANCE.nfaFallbacks.increment();
+        }
+    }
+
+    /**
+     * Records a pattern whose generated matcher could not be made, with the
+     * counters on the reason is also printed to standard error
+     * @param e what went wrong
+     */
+    public static void jitFailed(Throwable e) {
+        if (enabled) {
+            INSTANCE.jitFailures.increment();
+            System.err.println("Problem generating the matcher: " + e);
+        }
+    }
+
+    /**
+     * Records a DFA being compiled into tables
+     * @param start the time from start()
+     * @param bytes the size of the transition table
+     */
+    public static void compiled(long start, long bytes) {
+        if (enabled) {
+            INSTANCE.compileNanos.add(System.nanoTime() - start);
+            INSTANCE.tableBytes.add(bytes);
+        }
+    }
+
+    /**
+     * Records one epsilon closure
+     */
+    public static void epsilonClosure() {
+        if (enabled) {
+            INSTANCE.epsilonClosureCalls.increment();
+        }
+    }
+
+    /**
+     * Records a finished scan, callers add up their counts locally first
+     * @param start the time from start()
+     * @param bytes the number of characters scanned
+     * @param lines the number of lines scanned
+     * @param matchCount the number of lines that matched
+     */
+    public static void scanned(long start, long bytes, long lines, long matchCount) {
+        if (enabled) {
+            INSTANCE.scanNanos.add(System.nanoTime() - start);
+            INSTANCE.bytesScanned.add(bytes);
+            INSTANCE.linesScanned.add(lines);
+            INSTANCE.matches.add(matchCount);
+        }
+    }
+
+    @Override
+    public long getPatternsCompiled() {
+        return this.patternsCompiled.sum();
+    }
+
+    @Override
+    public long getNfaStates() {
+        return this.nfaStates.sum();
+    }
+
+    @Override
+    public long getDfaStates() {
+        return this.dfaStates.sum();
+    }
+
+    @Override
+    public long getLargestDfa() {
+        return this.largestDfa.get();
+    }
+
+    @Override
+    public long getNfaFallbacks() {
+        return this.nfaFallbacks.sum();
+    }
+
+    @Override
+    public long getJitFailures() {
+        return this.jitFailures.sum();
+    }
+
+    @Override
+    public long getEpsilonClosureCalls() {
+        return this.epsilonClosureCalls.sum();
+    }
+
+    @Override
+    public long getParseNanos() {
+        return this.parseNanos.sum();
+    }
+
+    @Override
+    public long getNfaNanos() {
+        return this.nfaNanos.sum();
+    }
+
+    @Override
+    public long getDeterminizeNanos() {
+        return this.determinizeNanos.sum();
+    }
+
+    @Override
+    public long getCompileNanos() {
+        return this.compileNanos.sum();
+    }
+
+    @Override
+    public long getTableBytes() {
+        return this.tableBytes.sum();
+    }
+
+    @Override
+    public long getBytesScanned() {
+        return this.bytesScanned.sum();
+    }
+
+    @Override
+    public long getLinesScanned() {
+        return this.linesScanned.sum();
+    }
+
+    @Override
+    public long getMatches() {
+        return this.matches.sum();
+    }
+
+    @Override
+    public long getScanNanos() {
+        return this.scanNanos.sum();
+    }
+
+    @Override
+    public double getScanMegabytesPerSecond() {
+        long nanos = getScanNanos();
+        if (nanos == 0) {
+            return 0;
+        }
+        return getBytesScanned() / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    @Override
+    public void reset() {
+        this.patternsCompiled.reset();
+        this.nfaStates.reset();
+        this.dfaStates.reset();
+        this.largestDfa.reset();
+        this.nfaFallbacks.reset();
+        this.jitFailures.reset();
+        this.epsilonClosureCalls.reset();
+        this.parseNanos.reset();
+        this.nfaNanos.reset();
+        this.determinizeNanos.reset();
+        this.compileNanos.reset();
+        this.tableBytes.reset();
+        this.bytesScanned.reset();
+        this.linesScanned.reset();
+        this.matches.reset();
+        this.scanNanos.reset();
+    }
+
+    /**
+     * @return a summary of the counters, one per line
+     */
+    @Override
+    public String toString() {
+        StringBuilder output = new StringBuilder();
+        output.append("parse           ").append(millis(getParseNanos())).append(" ms\n");
+        output.append("nfa             ").append(getNfaStates()).append(" states in ")
+                .append(millis(getNfaNanos())).append(" ms\n");
+        output.append("determinize     ").append(getDfaStates()).append(" states in ")
+                .append(millis(getDeterminizeNanos())).append(" ms, ")
+                .append(getEpsilonClosureCalls()).append(" epsilon closures\n");
+        output.append("nfa fallbacks   ").append(getNfaFallbacks()).append(" patterns over the state budget\n");
+        output.append("jit failures    ").append(getJitFailures()).append(" patterns matched with their table\n");
+        output.append("compile         ").append(getTableBytes()).append(" table bytes in ")
+                .append(millis(getCompileNanos())).append(" ms\n");
+        output.append("scan            ").append(getLinesScanned()).append(" lines, ")
+                .append(getBytesScanned()).append(" bytes, ").append(getMatches()).append(" matches in ")
+                .append(millis(getScanNanos())).append(" ms\n");
+        output.append("throughput      ").append(String.format("%.2f", getScanMegabytesPerSecond())).append(" MB/s\n");
+        return output.toString();
+    }
+
+    /**
+     * @param nanos a time in nanoseconds
+     * @return the time in milliseconds
+     */
+    private static String millis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+}
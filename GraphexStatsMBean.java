@@ -0,0 +1,103 @@
+/*
+ * The management interface for the Graphex counters
+ */
+
+
+package graphex;
+
+
+/**
+ * Counters for every stage from parsing the regular expression to scanning,
+ * registered with JMX as graphex:type=Stats
+ */
+public interface GraphexStatsMBean {
+    /**
+     * @return the number of patterns turned into a DFA
+     */
+    long getPatternsCompiled();
+
+    /**
+     * @return the total number of NFA states made
+     */
+    long getNfaStates();
+
+    /**
+     * @return the total number of DFA states made
+     */
+    long getDfaStates();
+
+    /**
+     * @return the most DFA states made for one pattern
+     */
+    long getLargestDfa();
+
+    /**
+     * @return the number of patterns matched with their NFA because the DFA was over budget
+     */
+    long getNfaFallbacks();
+
+    /**
+     * @return the number of patterns whose generated matcher could not be made
+     */
+    long getJitFailures();
+
+    /**
+     * @return the number of times an epsilon closure was resolved
+     */
+    long getEpsilonClosureCalls();
+
+    /**
+     * @return the time spent parsing regular expressions
+     */
+    long getParseNanos();
+
+    /**
+     * @return the time spent building NFAs
+     */
+    long getNfaNanos();
+
+    /**
+     * @return the time spent turning NFAs into DFAs
+     */
+    long getDeterminizeNanos();
+
+    /**
+     * @return the time spent compiling DFAs into tables
+     */
+    long getCompileNanos();
+
+    /**
+     * @return the total size of the transition tables made
+     */
+    long getTableBytes();
+
+    /**
+     * @return the number of characters scanned
+     */
+    long getBytesScanned();
+
+    /**
+     * @return the number of lines scanned
+     */
+    long getLinesScanned();
+
+    /**
+     * @return the number of lines that matched
+     */
+    long getMatches();
+
+    /**
+     * @return the time spent scanning, added up over all threads
+     */
+    long getScanNanos();
+
+    /**
+     * @return the characters scanned per second of scanning in megabytes
+     */
+    double getScanMegabytesPerSecond();
+
+    /**
+     * Sets every counter back to 0
+     */
+    void reset();
+}
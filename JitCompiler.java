@@ -0,0 +1,369 @@
+/*
+ * Turn a compiled pattern into a JVM class
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.util.*;
+
+
+/**
+ * Generates a hidden class for a compiled pattern
+ * Every state becomes a block of code that reads one character and compares
+ * it against the ranges that leave the state, jumping straight to the block
+ * of the next state. There is no table to look up so HotSpot can keep the
+ * whole automaton in registers. Only small automata are generated since
+ * HotSpot will not compile a method of more than 8000 bytes
+ */
+final class JitCompiler {
+    /** The largest method HotSpot will compile by default */
+    private static final int MAX_CODE_LENGTH = 8000;
+
+    private static int maxStates = Integer.getInteger("graphex.jit.maxStates", 128);
+
+    // Constant pool entries, the integers for large characters are added after these
+    private static final int THIS_CLASS = 2;
+    private static final int OBJECT_CLASS = 4;
+    private static final int MATCHER_INTERFACE = 6;
+    private static final int INIT_NAME = 7;
+    private static final int VOID_DESCRIPTOR = 8;
+    private static final int OBJECT_INIT = 10;
+    private static final int CHAR_AT = 16;
+    private static final int MATCHES_NAME = 17;
+    private static final int MATCHES_DESCRIPTOR = 18;
+    private static final int CODE_NAME = 19;
+    private static final int FIRST_INTEGER = 20;
+
+    // Local variables of the generated matches method
+    private static final int TEXT = 1;
+    private static final int INDEX = 2;
+    private static final int END = 3;
+    private static final int LETTER = 4;
+
+    private final CompiledPattern pattern;
+    private byte[] code = new byte[1024];
+    private int length = 0;
+    private final Map<Integer, Integer> integers = new LinkedHashMap<Integer, Integer>();
+    private final int[] blockStart;
+    private final List<int[]> jumps = new ArrayList<int[]>();
+
+    /**
+     * Constructor for JitCompiler
+     * @param pattern the pattern to be generated
+     */
+    private JitCompiler(CompiledPattern pattern) {
+        this.pattern = pattern;
+        this.blockStart = new int[pattern.getStateCount()];
+    }
+
+    /**
+     * Sets the most states a pattern can have to be generated
+     * @param states the number of states, 0 turns generation off
+     */
+    public static void setMaxStates(int states) {
+        maxStates = states;
+    }
+
+    /**
+     * Generates the matcher for a pattern if it is small enough
+     * @param pattern the pattern
+     * @return the matcher or null if the pattern is too large or the class cannot be made, a
+     *         class that cannot be made is recorded in GraphexStats
+     */
+    public static JitMatcher compile(CompiledPattern pattern) {
+        if (pattern.getStateCount() > maxStates) {
+            return null;
+        }
+
+        try {
+            byte[] classFile = new JitCompiler(pattern).generate();
+            if (classFile == null) {
+                return null;
+            }
+
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+            return lookup.lookupClass().asSubclass(JitMatcher.class).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError | IllegalArgumentException | IOException e) {
+            // The pattern is still matched with its table, but a class that does not load is a bug
+            GraphexStats.jitFailed(e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the class file
+     * @return the bytes of the class or null if the method would be too large
+     * @throws IOException never, the output is in memory
+     */
+    private byte[] generate() throws IOException {
+        // The start state is laid out first so the method begins with it
+        List<Integer> order = new ArrayList<Integer>();
+        order.add(this.pattern.getStart());
+        for (int s = 0; s < this.pattern.getStateCount(); s++) {
+            if (s != this.pattern.getStart()) {
+                order.add(s);
+            }
+        }
+
+        // Get every character the pattern uses in order
+        StringBuilder letters = new StringBuilder();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            if (this.pattern.classOf((char) c) != 0) {
+                letters.append((char) c);
+            }
+        }
+
+        for (int state : order) {
+            writeState(state, letters);
+            if (this.length > MAX_CODE_LENGTH) {
+                return null;
+            }
+        }
+
+        byte[] method = Arrays.copyOf(this.code, this.length);
+
+        // Fill in the jumps now that every block has its position
+        for (int[] jump : this.jumps) {
+            int offset = this.blockStart[jump[1]] - jump[0];
+            method[jump[0] + 1] = (byte) (offset >> 8);
+            method[jump[0] + 2] = (byte) offset;
+        }
+
+        return classFile(method);
+    }
+
+    /**
+     * Writes the block of code for one state
+     * @param state the state
+     * @param letters every character the pattern uses in order
+     */
+    private void writeState(int state, CharSequence letters) {
+        this.blockStart[state] = this.length;
+
+        // If there is nothing left return whether this state accepts
+        //   iload index; iload end; if_icmplt read; iconst accept; ireturn
+        emit(0x15, INDEX, 0x15, END, 0xa1, 0, 5);
+        emit(this.pattern.isAccepting(state) ? 0x04 : 0x03, 0xac);
+
+        // Read the next character
+        //   aload text; iload index; invokeinterface charAt; istore letter; iinc index 1
+        emit(0x19, TEXT, 0x15, INDEX, 0xb9, CHAR_AT >> 8, CHAR_AT, 2, 0);
+        emit(0x36, LETTER, 0x84, INDEX, 1);
+
+        // Compare against each range of characters that goes to the same state
+        int i = 0;
+        while (i < letters.length()) {
+            char low = letters.charAt(i);
+            int target = this.pattern.next(state, low);
+            int j = i + 1;
+            while (j < letters.length() && letters.charAt(j) == letters.charAt(j - 1) + 1
+                    && this.pattern.next(state, letters.charAt(j)) == target) {
+                j++;
+            }
+            char high = letters.charAt(j - 1);
+            i = j;
+
+            if (target == CompiledPattern.DEAD_STATE) {
+                continue;
+            }
+
+            if (low == high) {
+                // iload letter; push low; if_icmpeq target
+                loadLetter();
+                pushConstant(low);
+                jump(0x9f, target);
+            }
+            else {
+                // iload letter; push low; if_icmplt skip; iload letter; push high; if_icmple target
+                loadLetter();
+                pushConstant(low);
+                int skip = this.length;
+                emit(0xa1, 0, 0);
+                loadLetter();
+                pushConstant(high);
+                jump(0xa4, target);
+
+                int offset = this.length - skip;
+                this.code[skip + 1] = (byte) (offset >> 8);
+                this.code[skip + 2] = (byte) offset;
+            }
+        }
+
+        // No range matched so the pattern fails
+        //   iconst_0; ireturn
+        emit(0x03, 0xac);
+    }
+
+    /**
+     * Appends bytes to the code of the matches method
+     * @param bytes the bytes, only the low 8 bits of each are used
+     */
+    private void emit(int... bytes) {
+        if (this.length + bytes.length > this.code.length) {
+            this.code = Arrays.copyOf(this.code, Math.max(this.code.length * 2, this.length + bytes.length));
+        }
+        for (int b : bytes) {
+            this.code[this.length++] = (byte) b;
+        }
+    }
+
+    /**
+     * Writes iload letter
+     */
+    private void loadLetter() {
+        emit(0x15, LETTER);
+    }
+
+    /**
+     * Pushes a character onto the stack
+     * @param c the character
+     */
+    private void pushConstant(char c) {
+        if (c <= Byte.MAX_VALUE) {
+            emit(0x10, c);
+        }
+        else if (c <= Short.MAX_VALUE) {
+            emit(0x11, c >> 8, c);
+        }
+        else {
+            Integer index = this.integers.get((int) c);
+            if (index == null) {
+                index = FIRST_INTEGER + this.integers.size();
+                this.integers.put((int) c, index);
+            }
+            emit(0x13, index >> 8, index);
+        }
+    }
+
+    /**
+     * Writes a jump to the block of a state, the offset is filled in once
+     * every block has been written
+     * @param opcode the jump instruction
+     * @param state the state jumped to
+     */
+    private void jump(int opcode, int state) {
+        this.jumps.add(new int[] { this.length, state });
+        emit(opcode, 0, 0);
+    }
+
+    /**
+     * Builds the class around the matches method
+     * The class file is version 49 so it does not need stack map frames
+     * @param method the code of the matches method
+     * @return the bytes of the class
+     * @throws IOException never, the output is in memory
+     */
+    private byte[] classFile(byte[] method) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeInt(0xcafebabe);
+        out.writeShort(0);
+        out.writeShort(49);
+
+        // Constant pool
+        out.writeShort(FIRST_INTEGER + this.integers.size());
+        writeUtf8(out, "graphex/GeneratedMatcher");
+        writeClass(out, 1);
+        writeUtf8(out, "java/lang/Object");
+        writeClass(out, 3);
+        writeUtf8(out, "graphex/JitMatcher");
+        writeClass(out, 5);
+        writeUtf8(out, "<init>");
+        writeUtf8(out, "()V");
+        out.writeByte(12);
+        out.writeShort(INIT_NAME);
+        out.writeShort(VOID_DESCRIPTOR);
+        out.writeByte(10);
+        out.writeShort(OBJECT_CLASS);
+        out.writeShort(9);
+        writeUtf8(out, "java/lang/CharSequence");
+        writeClass(out, 11);
+        writeUtf8(out, "charAt");
+        writeUtf8(out, "(I)C");
+        out.writeByte(12);
+        out.writeShort(13);
+        out.writeShort(14);
+        out.writeByte(11);
+        out.writeShort(12);
+        out.writeShort(15);
+        writeUtf8(out, "matches");
+        writeUtf8(out, "(Ljava/lang/CharSequence;II)Z");
+        writeUtf8(out, "Code");
+        for (int value : this.integers.keySet()) {
+            out.writeByte(3);
+            out.writeInt(value);
+        }
+
+        // final class GeneratedMatcher extends Object implements JitMatcher
+        out.writeShort(0x0030);
+        out.writeShort(THIS_CLASS);
+        out.writeShort(OBJECT_CLASS);
+        out.writeShort(1);
+        out.writeShort(MATCHER_INTERFACE);
+        out.writeShort(0);
+
+        out.writeShort(2);
+
+        // public GeneratedMatcher() { super(); }
+        byte[] init = { 0x2a, (byte) 0xb7, 0, OBJECT_INIT, (byte) 0xb1 };
+        writeMethod(out, INIT_NAME, VOID_DESCRIPTOR, 1, 1, init);
+
+        // public boolean matches(CharSequence text, int index, int end)
+        writeMethod(out, MATCHES_NAME, MATCHES_DESCRIPTOR, 3, 5, method);
+
+        out.writeShort(0);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a public method with only a Code attribute
+     * @param out the class file
+     * @param name the constant for the name
+     * @param descriptor the constant for the descriptor
+     * @param maxStack the deepest the stack gets
+     * @param maxLocals the number of local variables
+     * @param method the code
+     * @throws IOException never, the output is in memory
+     */
+    private static void writeMethod(DataOutputStream out, int name, int descriptor, int maxStack,
+            int maxLocals, byte[] method) throws IOException {
+        out.writeShort(0x0001);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(CODE_NAME);
+        out.writeInt(12 + method.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(method.length);
+        out.write(method);
+        out.writeShort(0);
+        out.writeShort(0);
+    }
+
+    /**
+     * @param out the class file
+     * @param s a string for the constant pool
+     * @throws IOException never, the output is in memory
+     */
+    private static void writeUtf8(DataOutputStream out, String s) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(s);
+    }
+
+    /**
+     * @param out the class file
+     * @param name the constant for the name of the class
+     * @throws IOException never, the output is in memory
+     */
+    private static void writeClass(DataOutputStream out, int name) throws IOException {
+        out.writeByte(7);
+        out.writeShort(name);
+    }
+}
@@ -0,0 +1,21 @@
+/*
+ * The interface of a generated matcher
+ */
+
+
+package graphex;
+
+
+/**
+ * A matcher made of generated bytecode for one pattern
+ */
+interface JitMatcher {
+    /**
+     * Checks if all of the characters match
+     * @param text the text to be matched
+     * @param from the first character
+     * @param to one past the last character
+     * @return true if it matches
+     */
+    boolean matches(CharSequence text, int from, int to);
+}
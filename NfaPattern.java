@@ -0,0 +1,404 @@
+/*
+ * Match with a NFA when its DFA would be too large
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.util.*;
+
+
+/**
+ * A NFA kept in arrays and matched by simulating it, a Pike VM
+ * Every NFA state that can be reached so far is kept in a sparse set, so
+ * each character is read once and costs at most one step of every NFA
+ * state. Matching takes time in proportion to the length of the text times
+ * the size of the NFA and memory in proportion to the size of the NFA,
+ * however large its DFA would be. It is used when the StateBudget is
+ * exceeded. Like CompiledPattern it is immutable, each thread matches with
+ * its own Threads
+ */
+final class NfaPattern {
+    private final int startState;
+    private final int acceptState;
+    private final int[][] epsilon;
+    private final char[][] labels;
+    private final int[][] targets;
+
+    /**
+     * Constructor for NfaPattern
+     * @param nfa the NFA, it is only read
+     */
+    public NfaPattern(NFA nfa) {
+        List<List<Transition>> delta = nfa.getDeltaTransition();
+        int states = Math.max(delta.size(), Math.max(nfa.getStartState(), nfa.getAcceptState()) + 1);
+        this.startState = nfa.getStartState();
+        this.acceptState = nfa.getAcceptState();
+        this.epsilon = new int[states][];
+        this.labels = new char[states][];
+        this.targets = new int[states][];
+
+        for (int s = 0; s < states; s++) {
+            List<Transition> transitions = s < delta.size() ? delta.get(s) : Collections.<Transition>emptyList();
+
+            // Labelled transitions are sorted so the ones for a character can be found by a binary search
+            List<Transition> labelled = new ArrayList<Transition>();
+            List<Integer> epsilons = new ArrayList<Integer>();
+            for (Transition t : transitions) {
+                if (t.getTransition().equals("epsilon")) {
+                    epsilons.add(t.getTarget());
+                }
+                else {
+                    labelled.add(t);
+                }
+            }
+            labelled.sort((a, b) -> Character.compare(a.getTransition().charAt(0), b.getTransition().charAt(0)));
+
+            this.epsilon[s] = new int[epsilons.size()];
+            for (int i = 0; i < epsilons.size(); i++) {
+                this.epsilon[s][i] = epsilons.get(i);
+            }
+            this.labels[s] = new char[labelled.size()];
+            this.targets[s] = new int[labelled.size()];
+            for (int i = 0; i < labelled.size(); i++) {
+                this.labels[s][i] = labelled.get(i).getTransition().charAt(0);
+                this.targets[s][i] = labelled.get(i).getTarget();
+            }
+        }
+    }
+
+    /**
+     * @return the number of NFA states
+     */
+    public int getStateCount() {
+        return this.epsilon.length;
+    }
+
+    /**
+     * @return new scratch space for one thread to match with
+     */
+    public Threads threads() {
+        return new Threads(this.epsilon.length);
+    }
+
+    /**
+     * The NFA states reached so far, with the position the match of each started
+     * One is made per thread and then used for every match without allocating
+     */
+    static final class Threads {
+        private final int[] dense;
+        private final int[] sparse;
+        private final int[] starts;
+        private int size;
+
+        private final int[] nextDense;
+        private final int[] nextSparse;
+        private final int[] nextStarts;
+        private int nextSize;
+
+        private final int[] stack;
+
+        Threads(int states) {
+            this.dense = new int[states];
+            this.sparse = new int[states];
+            this.starts = new int[states];
+            this.nextDense = new int[states];
+            this.nextSparse = new int[states];
+            this.nextStarts = new int[states];
+            this.stack = new int[states];
+        }
+    }
+
+    /**
+     * Checks if all of the text matches
+     * @param threads the scratch space of the calling thread
+     * @param text the text
+     * @param from the first character
+     * @param to one past the last character
+     * @return true if it matches
+     */
+    public boolean matches(Threads threads, CharSequence text, int from, int to) {
+        clear(threads);
+        add(threads, this.startState, from);
+
+        for (int i = from; i < to && threads.size > 0; i++) {
+            step(threads, text.charAt(i), Integer.MAX_VALUE);
+        }
+        return contains(threads, this.acceptState);
+    }
+
+    /**
+     * Finds the longest match starting at a position
+     * @param threads the scratch space of the calling thread
+     * @param text the text
+     * @param from where the match starts
+     * @param to one past the last character that can be matched
+     * @return one past the end of the longest match, or -1 if there is none
+     */
+    public int longest(Threads threads, CharSequence text, int from, int to) {
+        clear(threads);
+        add(threads, this.startState, from);
+        int end = contains(threads, this.acceptState) ? from : -1;
+
+        for (int i = from; i < to && threads.size > 0; i++) {
+            step(threads, text.charAt(i), Integer.MAX_VALUE);
+            if (contains(threads, this.acceptState)) {
+                end = i + 1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Finds the next match the way SpanFinder does: the match that starts
+     * first and then the longest match from there. A new match is started
+     * before every character, and where two reach the same NFA state the one
+     * that started first is kept since they have the same future. Once a
+     * match has been found only the matches that started before it are kept
+     * going, and the search ends when none are left
+     * @param threads the scratch space of the calling thread
+     * @param text the text to search
+     * @param from where the search starts
+     * @param to one past the last character searched
+     * @return the span of the match as from SpanFinder.span, or -1 if there is none
+     */
+    public long find(Threads threads, CharSequence text, int from, int to) {
+        clear(threads);
+        add(threads, this.startState, from);
+
+        int start = contains(threads, this.acceptState) ? from : -1;
+
+        for (int i = from; i < to && start != from; i++) {
+            step(threads, text.charAt(i), start == -1 ? Integer.MAX_VALUE : start);
+            if (start == -1 || i + 1 < start) {
+                add(threads, this.startState, i + 1);
+            }
+
+            if (contains(threads, this.acceptState)) {
+                start = threads.starts[threads.sparse[this.acceptState]];
+            }
+            if (start != -1 && threads.size == 0) {
+                break;
+            }
+        }
+
+        if (start == -1) {
+            return -1;
+        }
+        return SpanFinder.span(start, longest(threads, text, start, to));
+    }
+
+    /**
+     * Empties the set of states
+     * @param threads the scratch space
+     */
+    private static void clear(Threads threads) {
+        threads.size = 0;
+    }
+
+    /**
+     * @param threads the scratch space
+     * @param state a NFA state
+     * @return true if the state has been reached
+     */
+    private static boolean contains(Threads threads, int state) {
+        int i = threads.sparse[state];
+        return i < threads.size && threads.dense[i] == state;
+    }
+
+    /**
+     * Adds a state and everything it reaches by epsilon transitions, states
+     * already reached keep the start they have
+     * @param threads the scratch space
+     * @param state the state
+     * @param start where the match reaching it started
+     */
+    private void add(Threads threads, int state, int start) {
+        int top = 0;
+        threads.stack[top++] = state;
+
+        while (top > 0) {
+            int s = threads.stack[--top];
+            if (contains(threads, s)) {
+                continue;
+            }
+
+            threads.sparse[s] = threads.size;
+            threads.dense[threads.size] = s;
+            threads.starts[threads.size] = start;
+            threads.size++;
+
+            for (int target : this.epsilon[s]) {
+                if (!contains(threads, target)) {
+                    threads.stack[top++] = target;
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves every reached state on one character, in the order they were
+     * reached. The states are in the order their matches started, so the
+     * earliest starts are kept
+     * @param threads the scratch space
+     * @param c the character
+     * @param before only the matches that started before this are moved on
+     */
+    private void step(Threads threads, char c, int before) {
+        threads.nextSize = 0;
+
+        for (int n = 0; n < threads.size && threads.starts[n] < before; n++) {
+            int s = threads.dense[n];
+            char[] stateLabels = this.labels[s];
+            if (stateLabels.length == 0) {
+                continue;
+            }
+
+            // Go to the first transition on the character
+            int i = Arrays.binarySearch(stateLabels, c);
+            if (i < 0) {
+                continue;
+            }
+            while (i > 0 && stateLabels[i - 1] == c) {
+                i--;
+            }
+
+            for (; i < stateLabels.length && stateLabels[i] == c; i++) {
+                addNext(threads, this.targets[s][i], threads.starts[n]);
+            }
+        }
+
+        swap(threads);
+    }
+
+    /**
+     * Adds a state and its epsilon closure to the next set, the current
+     * set is not touched
+     * @param threads the scratch space
+     * @param state the state
+     * @param start where the match reaching it started
+     */
+    private void addNext(Threads threads, int state, int start) {
+        int top = 0;
+        threads.stack[top++] = state;
+
+        while (top > 0) {
+            int s = threads.stack[--top];
+            int i = threads.nextSparse[s];
+            if (i < threads.nextSize && threads.nextDense[i] == s) {
+                continue;
+            }
+
+            threads.nextSparse[s] = threads.nextSize;
+            threads.nextDense[threads.nextSize] = s;
+            threads.nextStarts[threads.nextSize] = start;
+            threads.nextSize++;
+
+            for (int target : this.epsilon[s]) {
+                int j = threads.nextSparse[target];
+                if (!(j < threads.nextSize && threads.nextDense[j] == target)) {
+                    threads.stack[top++] = target;
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes the next set the current one
+     * @param threads the scratch space
+     */
+    private static void swap(Threads threads) {
+        System.arraycopy(threads.nextDense, 0, threads.dense, 0, threads.nextSize);
+        System.arraycopy(threads.nextStarts, 0, threads.starts, 0, threads.nextSize);
+        for (int n = 0; n < threads.nextSize; n++) {
+            threads.sparse[threads.dense[n]] = n;
+        }
+        threads.size = threads.nextSize;
+    }
+
+    /**
+     * Performs the pattern matching on every line from a reader, printing
+     * the same as PatternMatcher.performRegex
+     * @param reader the lines to be processed
+     * @param out where the matches are printed
+     * @param prefix printed before every match, such as the file name
+     * @throws IOException if the reader fails
+     */
+    public void performRegex(BufferedReader reader, PrintStream out, String prefix) throws IOException {
+        Threads threads = threads();
+        boolean emptyMatches = matches(threads, "", 0, 0);
+        long start = GraphexStats.start();
+        long bytes = 0;
+        long lines = 0;
+        long matchCount = 0;
+        String currentLine;
+
+        while ((currentLine = reader.readLine()) != null) {
+            bytes += currentLine.length() + 1;
+            lines++;
+
+            if (currentLine.length() > 0 && matches(threads, currentLine, 0, currentLine.length())) {
+                out.println(prefix + "String matched " + currentLine);
+                matchCount++;
+            }
+            else if (emptyMatches) {
+                out.println(prefix + "Empty String matched");
+            }
+        }
+
+        GraphexStats.scanned(start, bytes, lines, matchCount);
+    }
+
+    /**
+     * Prints every match in every line from a reader, printing the same as
+     * SpanFinder.performSearch
+     * @param reader the lines to be processed
+     * @param out where the matches are printed
+     * @param prefix printed before every match, such as the file name
+     * @throws IOException if the reader fails
+     */
+    public void performSearch(BufferedReader reader, PrintStream out, String prefix) throws IOException {
+        Threads threads = threads();
+        long start = GraphexStats.start();
+        long bytes = 0;
+        long lines = 0;
+        long matchCount = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            bytes += line.length() + 1;
+            lines++;
+
+            int from = 0;
+            while (from <= line.length()) {
+                long span = find(threads, line, from, line.length());
+                if (span == -1) {
+                    break;
+                }
+
+                int matchStart = SpanFinder.start(span);
+                int matchEnd = SpanFinder.end(span);
+
+                // Empty matches are not printed, the search just moves past them
+                if (matchEnd > matchStart) {
+                    out.println(prefix + "String found " + line.substring(matchStart, matchEnd)
+                            + " at " + lines + ":" + matchStart + "-" + matchEnd);
+                    matchCount++;
+                    from = matchEnd;
+                }
+                else {
+                    from = matchEnd + 1;
+                }
+            }
+        }
+
+        GraphexStats.scanned(start, bytes, lines, matchCount);
+    }
+
+    @Override
+    public String toString() {
+        return "NfaPattern start = " + this.startState + " accept = " + this.acceptState + " states = "
+                + this.epsilon.length;
+    }
+}
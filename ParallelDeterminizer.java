@@ -0,0 +1,401 @@
+/*
+ * Turn a NFA into a DFA on more than one thread
+ */
+
+
+package graphex;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The subset construction spread over a number of threads
+ * The DFA is built one breadth first level at a time. The workers pull the
+ * sets of the current level from a shared counter and find the sets they
+ * move to, which are interned in a concurrent hash table so every set is
+ * only closed and stored once. Between levels the new sets are numbered in
+ * the order of the level with the labels sorted, so the numbering is the
+ * same however the threads were scheduled and whatever their number
+ */
+final class ParallelDeterminizer {
+    /** Levels smaller than this are done on the calling thread */
+    private static final int MIN_PARALLEL_LEVEL = 64;
+
+    private static int threads = Math.max(1, Integer.getInteger("graphex.determinize.threads", 1));
+
+    private final NFA nfa;
+    private final int workers;
+
+    // The NFA as arrays, each state has its epsilon targets and its labelled transitions
+    private final int[][] epsilon;
+    private final String[][] labels;
+    private final int[][] targets;
+
+    // Every set found so far, and the closure of every move set
+    private final ConcurrentHashMap<StateSet, StateSet> interned = new ConcurrentHashMap<StateSet, StateSet>();
+    private final ConcurrentHashMap<StateSet, StateSet> closures = new ConcurrentHashMap<StateSet, StateSet>();
+
+    // What is held so far, in NFA states kept in sets and in transitions
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong transitions = new AtomicLong();
+
+    /**
+     * A sorted set of NFA states with its hash worked out once
+     * The number is only given between levels, by one thread
+     */
+    private static final class StateSet {
+        final int[] states;
+        final int hash;
+        int number = -1;
+        String[] rowLabels;
+        StateSet[] rowTargets;
+
+        StateSet(int[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateSet && ((StateSet) o).hash == this.hash
+                    && Arrays.equals(((StateSet) o).states, this.states);
+        }
+    }
+
+    /**
+     * Constructor for ParallelDeterminizer
+     * @param nfa the NFA, it is only read
+     * @param workers the number of threads
+     */
+    ParallelDeterminizer(NFA nfa, int workers) {
+        this.nfa = nfa;
+        this.workers = Math.max(1, workers);
+
+        List<List<Transition>> delta = nfa.getDeltaTransition();
+        int states = Math.max(delta.size(), Math.max(nfa.getStartState(), nfa.getAcceptState()) + 1);
+        this.epsilon = new int[states][];
+        this.labels = new String[states][];
+        this.targets = new int[states][];
+
+        for (int s = 0; s < states; s++) {
+            List<Transition> transitions = s < delta.size() ? delta.get(s) : Collections.<Transition>emptyList();
+            int epsilons = 0;
+            for (Transition t : transitions) {
+                if (t.getTransition().equals("epsilon")) {
+                    epsilons++;
+                }
+            }
+
+            this.epsilon[s] = new int[epsilons];
+            this.labels[s] = new String[transitions.size() - epsilons];
+            this.targets[s] = new int[transitions.size() - epsilons];
+
+            int e = 0;
+            int l = 0;
+            for (Transition t : transitions) {
+                if (t.getTransition().equals("epsilon")) {
+                    this.epsilon[s][e++] = t.getTarget();
+                }
+                else {
+                    this.labels[s][l] = t.getTransition();
+                    this.targets[s][l++] = t.getTarget();
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the number of threads used to turn NFAs into DFAs
+     * @param count the number of threads, 1 uses the original single threaded construction
+     */
+    public static void setThreads(int count) {
+        threads = Math.max(1, count);
+    }
+
+    /**
+     * @return the number of threads used to turn NFAs into DFAs
+     */
+    public static int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Builds the DFA
+     * @return the DFA, its states are numbered in breadth first order from 0 for the start
+     * @throws StateBudgetException if the DFA would be larger than the StateBudget
+     */
+    public DFA run() {
+        long start = GraphexStats.start();
+        ExecutorService pool = this.workers > 1
+                ? Executors.newFixedThreadPool(this.workers - 1, FileScanner.daemonThreads()) : null;
+
+        // Each task of a level gets the same worker, so its scratch space is
+        // kept from one level to the next and is dropped with the determinizer
+        List<Worker> scratch = new ArrayList<Worker>();
+        for (int w = 0; w < this.workers; w++) {
+            scratch.add(new Worker());
+        }
+
+        List<StateSet> order = new ArrayList<StateSet>();
+        try {
+            StateSet first = intern(scratch.get(0).closure(new int[] { this.nfa.getStartState() }, 1));
+            first.number = 0;
+            order.add(first);
+
+            int levelStart = 0;
+            while (levelStart < order.size()) {
+                List<StateSet> level = new ArrayList<StateSet>(order.subList(levelStart, order.size()));
+                expand(level, scratch, pool);
+                levelStart = order.size();
+
+                // Number the new sets in order so it does not depend on the threads
+                for (StateSet set : level) {
+                    for (StateSet target : set.rowTargets) {
+                        if (target.number == -1) {
+                            target.number = order.size();
+                            order.add(target);
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+
+        // Turn the numbered sets into the maps the DFA uses
+        Map<Integer, Map<String, Integer>> delta = new HashMap<Integer, Map<String, Integer>>();
+        Set<Integer> accept = new HashSet<Integer>();
+        for (StateSet set : order) {
+            Map<String, Integer> stateTransitions = new HashMap<String, Integer>();
+            for (int i = 0; i < set.rowLabels.length; i++) {
+                stateTransitions.put(set.rowLabels[i], set.rowTargets[i].number);
+            }
+            delta.put(set.number, stateTransitions);
+
+            if (Arrays.binarySearch(set.states, this.nfa.getAcceptState()) >= 0) {
+                accept.add(set.number);
+            }
+        }
+
+        GraphexStats.determinized(start, order.size());
+
+        return new DFA(0, accept, delta);
+    }
+
+    /**
+     * Finds the transitions of every set in a level, the workers take the
+     * next set from a shared counter until there are none left
+     * @param level the sets of the level
+     * @param scratch one worker for each thread, the first is for the calling thread
+     * @param pool the other threads or null
+     */
+    private void expand(List<StateSet> level, List<Worker> scratch, ExecutorService pool) {
+        AtomicInteger next = new AtomicInteger();
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        if (pool != null && level.size() >= MIN_PARALLEL_LEVEL) {
+            for (int w = 1; w < this.workers; w++) {
+                Worker worker = scratch.get(w);
+                futures.add(pool.submit(() -> worker.drain(level, next)));
+            }
+        }
+        scratch.get(0).drain(level, next);
+
+        // Waiting also makes everything the workers wrote visible here
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Determinization was interrupted", e);
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * @param set a set of states
+     * @return the one copy of the set that is kept
+     */
+    private StateSet intern(StateSet set) {
+        StateSet existing = this.interned.putIfAbsent(set, set);
+        if (existing != null) {
+            return existing;
+        }
+
+        // Give up before the DFA takes all of the memory
+        StateBudget.check(this.interned.size(), this.entries.addAndGet(set.states.length), this.transitions.get());
+        return set;
+    }
+
+    /**
+     * Keeps the closure of a move set for the other sets that reach it
+     * @param key the move set
+     * @param closed its closure
+     * @return the closure that is kept, another thread may have kept one first
+     */
+    private StateSet keepClosure(StateSet key, StateSet closed) {
+        StateSet raced = this.closures.putIfAbsent(key, closed);
+        if (raced != null) {
+            return raced;
+        }
+
+        // The move set is held as the key as well as the closure
+        StateBudget.check(this.interned.size(), this.entries.addAndGet(key.states.length), this.transitions.get());
+        return closed;
+    }
+
+    /**
+     * The states reached on one label
+     */
+    private static final class Move {
+        int[] states = new int[4];
+        int size = 0;
+    }
+
+    /**
+     * The scratch space of one thread
+     */
+    private final class Worker {
+        private final int[] mark = new int[epsilon.length];
+        private int stamp = 0;
+        private int[] stack = new int[16];
+
+        /**
+         * Expands sets of a level until every one has been taken
+         * @param level the sets of the level
+         * @param next the index of the next set to take
+         */
+        void drain(List<StateSet> level, AtomicInteger next) {
+            int i;
+            while ((i = next.getAndIncrement()) < level.size()) {
+                expand(level.get(i));
+            }
+        }
+
+        /**
+         * Finds the transitions of a set, they are sorted by label
+         * @param set the set
+         */
+        void expand(StateSet set) {
+            TreeMap<String, Move> moves = new TreeMap<String, Move>();
+
+            for (int s : set.states) {
+                for (int i = 0; i < labels[s].length; i++) {
+                    Move move = moves.computeIfAbsent(labels[s][i], k -> new Move());
+                    move.states = push(move.states, move.size++, targets[s][i]);
+                }
+            }
+
+            String[] rowLabels = new String[moves.size()];
+            StateSet[] rowTargets = new StateSet[moves.size()];
+            int i = 0;
+
+            for (Map.Entry<String, Move> move : moves.entrySet()) {
+                int[] moved = Arrays.copyOf(move.getValue().states, move.getValue().size);
+                Arrays.sort(moved);
+                StateSet key = new StateSet(dedupe(moved));
+
+                // The same move set is often reached from many sets, so its closure is kept
+                StateSet closed = closures.get(key);
+                if (closed == null) {
+                    closed = keepClosure(key, intern(closure(key.states, key.states.length)));
+                }
+
+                rowLabels[i] = move.getKey();
+                rowTargets[i++] = closed;
+            }
+
+            set.rowLabels = rowLabels;
+            set.rowTargets = rowTargets;
+            StateBudget.check(interned.size(), entries.get(), transitions.addAndGet(rowLabels.length));
+        }
+
+        /**
+         * Finds the epsilon closure of some states
+         * @param states the states
+         * @param count how many of the states to use
+         * @return the closure, sorted
+         */
+        StateSet closure(int[] states, int count) {
+            GraphexStats.epsilonClosure();
+
+            if (++this.stamp == 0) {
+                Arrays.fill(this.mark, 0);
+                this.stamp = 1;
+            }
+
+            int[] found = new int[Math.max(4, count)];
+            int size = 0;
+            int top = 0;
+
+            for (int n = 0; n < count; n++) {
+                int s = states[n];
+                if (this.mark[s] != this.stamp) {
+                    this.mark[s] = this.stamp;
+                    this.stack = push(this.stack, top++, s);
+                }
+            }
+
+            while (top > 0) {
+                int s = this.stack[--top];
+                found = push(found, size++, s);
+                for (int target : epsilon[s]) {
+                    if (this.mark[target] != this.stamp) {
+                        this.mark[target] = this.stamp;
+                        this.stack = push(this.stack, top++, target);
+                    }
+                }
+            }
+
+            int[] closed = Arrays.copyOf(found, size);
+            Arrays.sort(closed);
+            return new StateSet(closed);
+        }
+    }
+
+    /**
+     * @param array an array
+     * @param index where the value goes
+     * @param value the value
+     * @return the array, made larger if it was full
+     */
+    private static int[] push(int[] array, int index, int value) {
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+        }
+        array[index] = value;
+        return array;
+    }
+
+    /**
+     * @param sorted a sorted array
+     * @return the array without repeated values
+     */
+    private static int[] dedupe(int[] sorted) {
+        int size = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (size == 0 || sorted[size - 1] != sorted[i]) {
+                sorted[size++] = sorted[i];
+            }
+        }
+        return size == sorted.length ? sorted : Arrays.copyOf(sorted, size);
+    }
+}
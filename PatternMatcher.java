@@ -0,0 +1,135 @@
+/*
+ * Scans text with a compiled pattern
+ */
+
+
+package graphex;
+
+import java.io.*;
+
+
+/**
+ * Holds the scan state for one thread using a CompiledPattern
+ * The pattern itself is shared, a matcher is cheap so each thread or task
+ * should make its own
+ */
+final class PatternMatcher {
+    private final CompiledPattern pattern;
+    private int state;
+
+    /**
+     * Constructor for PatternMatcher
+     * @param pattern the compiled pattern to match with
+     */
+    public PatternMatcher(CompiledPattern pattern) {
+        this.pattern = pattern;
+        this.state = pattern.getStart();
+    }
+
+    /**
+     * @return the pattern used by the matcher
+     */
+    public CompiledPattern pattern() {
+        return this.pattern;
+    }
+
+    /**
+     * Goes back to the start state
+     */
+    public void reset() {
+        this.state = this.pattern.getStart();
+    }
+
+    /**
+     * Carries on from a state saved from state()
+     * @param state a state of the pattern or the dead state
+     */
+    public void setState(int state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the current state or the dead state
+     */
+    public int state() {
+        return this.state;
+    }
+
+    /**
+     * Reads characters from the current state
+     * @param text the characters
+     * @param from the first character read
+     * @param to one past the last character read
+     * @return false if the matcher is now in the dead state
+     */
+    public boolean feed(CharSequence text, int from, int to) {
+        CompiledPattern p = this.pattern;
+        int s = this.state;
+
+        for (int i = from; i < to && s != CompiledPattern.DEAD_STATE; i++) {
+            s = p.next(s, text.charAt(i));
+        }
+
+        this.state = s;
+        return s != CompiledPattern.DEAD_STATE;
+    }
+
+    /**
+     * @return true if the current state accepts
+     */
+    public boolean isAccepting() {
+        return this.pattern.isAccepting(this.state);
+    }
+
+    /**
+     * Checks if the whole of the text matches
+     * The generated matcher is used when the pattern has one, then the state
+     * of the matcher is left at the start
+     * @param text the text to be matched
+     * @return true if it matches
+     */
+    public boolean matches(CharSequence text) {
+        reset();
+
+        JitMatcher jit = this.pattern.getJit();
+        if (jit != null) {
+            return jit.matches(text, 0, text.length());
+        }
+
+        feed(text, 0, text.length());
+        return isAccepting();
+    }
+
+    /**
+     * Performs the pattern matching on every line from a reader
+     * @param reader the lines to be processed
+     * @param out where the matches are printed
+     * @param prefix printed before every match, such as the file name
+     * @throws IOException if the reader fails
+     */
+    public void performRegex(BufferedReader reader, PrintStream out, String prefix) throws IOException {
+        boolean emptyMatches = this.pattern.isAccepting(this.pattern.getStart());
+        long start = GraphexStats.start();
+        long bytes = 0;
+        long lines = 0;
+        long matchCount = 0;
+        String currentLine;
+
+        while ((currentLine = reader.readLine()) != null) {
+            bytes += currentLine.length() + 1;
+            lines++;
+
+            // Only print the line if all of it was matched
+            if (currentLine.length() > 0 && matches(currentLine)) {
+                out.println(prefix + "String matched " + currentLine);
+                matchCount++;
+            }
+            // If the start state accepts the empty string is always matched
+            else if (emptyMatches) {
+                out.println(prefix + "Empty String matched");
+            }
+        }
+
+        GraphexStats.scanned(start, bytes, lines, matchCount);
+    }
+}
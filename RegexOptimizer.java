@@ -0,0 +1,270 @@
+/*
+ * Simplify a regular expression before its NFA is made
+ */
+
+
+package graphex;
+
+import java.util.*;
+
+
+/**
+ * Rewrites a regular expression into a smaller one that matches the same strings
+ * The parser builds the tree as it is written, so long alternations of words
+ * become a chain of unions that each get their own states. This pass
+ * flattens concatenations and unions, removes repeated alternatives, shares
+ * the common prefixes of the alternatives like a trie and then their common
+ * suffixes, merges alternatives of one character into a CharClass, and
+ * removes stars that are inside other stars
+ */
+final class RegexOptimizer {
+    /**
+     * Constructor for RegexOptimizer, it only has static methods
+     */
+    private RegexOptimizer() {
+    }
+
+    /**
+     * @param regex a regular expression
+     * @return a regular expression matching the same strings with a smaller NFA
+     */
+    public static Regex optimize(Regex regex) {
+        if (regex instanceof Concatenation) {
+            List<Regex> factors = new ArrayList<Regex>();
+            for (Regex factor : factors(regex)) {
+                addFactor(factors, optimize(factor));
+            }
+            return concatenate(factors);
+        }
+
+        if (regex instanceof Union) {
+            List<Regex> alternatives = new ArrayList<Regex>();
+            flattenUnion(regex, alternatives);
+
+            // Each alternative is written as its list of factors, repeats are dropped
+            Set<List<Regex>> words = new LinkedHashSet<List<Regex>>();
+            for (Regex alternative : alternatives) {
+                words.add(factors(optimize(alternative)));
+            }
+            return alternation(new ArrayList<List<Regex>>(words));
+        }
+
+        if (regex instanceof Star) {
+            Regex inner = optimize(((Star) regex).getRegex());
+
+            // (r*)* is r*, and the empty string or stars inside a starred union add nothing
+            if (inner instanceof Star || inner instanceof Epsilon) {
+                return inner instanceof Star ? inner : new Epsilon();
+            }
+            if (inner instanceof Union) {
+                List<Regex> alternatives = new ArrayList<Regex>();
+                flattenUnion(inner, alternatives);
+
+                Set<List<Regex>> words = new LinkedHashSet<List<Regex>>();
+                for (Regex alternative : alternatives) {
+                    if (alternative instanceof Star) {
+                        alternative = ((Star) alternative).getRegex();
+                    }
+                    if (!(alternative instanceof Epsilon)) {
+                        words.add(factors(alternative));
+                    }
+                }
+                inner = words.isEmpty() ? new Epsilon() : alternation(new ArrayList<List<Regex>>(words));
+                if (inner instanceof Epsilon) {
+                    return inner;
+                }
+            }
+            return new Star(inner);
+        }
+
+        return regex;
+    }
+
+    /**
+     * Adds a factor to a concatenation, the empty string is left out and
+     * r* r* becomes r*
+     * @param factors the factors so far
+     * @param factor the next factor, it is already optimized
+     */
+    private static void addFactor(List<Regex> factors, Regex factor) {
+        if (factor instanceof Epsilon) {
+            return;
+        }
+        if (factor instanceof Concatenation) {
+            for (Regex f : factors(factor)) {
+                addFactor(factors, f);
+            }
+            return;
+        }
+        if (factor instanceof Star && !factors.isEmpty() && factors.get(factors.size() - 1).equals(factor)) {
+            return;
+        }
+        factors.add(factor);
+    }
+
+    /**
+     * @param regex a regular expression
+     * @return the factors of the regular expression if it is a concatenation,
+     *         an empty list for the empty string, or else just the regular expression
+     */
+    private static List<Regex> factors(Regex regex) {
+        List<Regex> factors = new ArrayList<Regex>();
+
+        // Concatenations are walked without recursion since the parser makes long chains
+        Deque<Regex> pending = new ArrayDeque<Regex>();
+        pending.push(regex);
+        while (!pending.isEmpty()) {
+            Regex r = pending.pop();
+            if (r instanceof Concatenation) {
+                pending.push(((Concatenation) r).getSecond());
+                pending.push(((Concatenation) r).getFirst());
+            }
+            else if (!(r instanceof Epsilon)) {
+                factors.add(r);
+            }
+        }
+        return factors;
+    }
+
+    /**
+     * Gets every alternative of nested unions in order
+     * @param regex a regular expression
+     * @param alternatives where the alternatives are added
+     */
+    private static void flattenUnion(Regex regex, List<Regex> alternatives) {
+        Deque<Regex> pending = new ArrayDeque<Regex>();
+        pending.push(regex);
+        while (!pending.isEmpty()) {
+            Regex r = pending.pop();
+            if (r instanceof Union) {
+                pending.push(((Union) r).getSecond());
+                pending.push(((Union) r).getFirst());
+            }
+            else {
+                alternatives.add(r);
+            }
+        }
+    }
+
+    /**
+     * @param factors some regular expressions
+     * @return their concatenation, or the empty string if there are none
+     */
+    private static Regex concatenate(List<Regex> factors) {
+        if (factors.isEmpty()) {
+            return new Epsilon();
+        }
+
+        Regex result = factors.get(factors.size() - 1);
+        for (int i = factors.size() - 2; i >= 0; i--) {
+            result = new Concatenation(factors.get(i), result);
+        }
+        return result;
+    }
+
+    /**
+     * Builds the union of some words, each a list of factors
+     * Words are grouped by their first factor and each group becomes the
+     * factor followed by the union of the rest of its words, then the same is
+     * done with the last factors. Words of one character are merged into a class
+     * @param words the words, there are no repeats
+     * @return the union
+     */
+    private static Regex alternation(List<List<Regex>> words) {
+        boolean empty = false;
+
+        // Share the common prefixes
+        Map<Regex, List<List<Regex>>> byFirst = new LinkedHashMap<Regex, List<List<Regex>>>();
+        for (List<Regex> word : words) {
+            if (word.isEmpty()) {
+                empty = true;
+            }
+            else {
+                byFirst.computeIfAbsent(word.get(0), k -> new ArrayList<List<Regex>>())
+                        .add(word.subList(1, word.size()));
+            }
+        }
+
+        List<List<Regex>> prefixed = new ArrayList<List<Regex>>();
+        for (Map.Entry<Regex, List<List<Regex>>> group : byFirst.entrySet()) {
+            List<Regex> word = new ArrayList<Regex>();
+            word.add(group.getKey());
+            if (group.getValue().size() == 1) {
+                word.addAll(group.getValue().get(0));
+            }
+            else {
+                addFactor(word, alternation(group.getValue()));
+            }
+            prefixed.add(word);
+        }
+
+        // Then share the common suffixes of what is left
+        Map<Regex, List<List<Regex>>> byLast = new LinkedHashMap<Regex, List<List<Regex>>>();
+        for (List<Regex> word : prefixed) {
+            byLast.computeIfAbsent(word.get(word.size() - 1), k -> new ArrayList<List<Regex>>())
+                    .add(word.subList(0, word.size() - 1));
+        }
+
+        List<Regex> alternatives = new ArrayList<Regex>();
+        List<Character> characters = new ArrayList<Character>();
+        int classAt = -1;
+        boolean starred = false;
+
+        for (Map.Entry<Regex, List<List<Regex>>> group : byLast.entrySet()) {
+            Regex alternative;
+            if (group.getValue().size() == 1) {
+                List<Regex> word = new ArrayList<Regex>(group.getValue().get(0));
+                word.add(group.getKey());
+                alternative = concatenate(word);
+            }
+            else {
+                List<Regex> word = new ArrayList<Regex>();
+                addFactor(word, alternation(group.getValue()));
+                addFactor(word, group.getKey());
+                alternative = concatenate(word);
+            }
+
+            // Single characters are gathered into one class where the first one was
+            if (alternative instanceof Symbol || alternative instanceof CharClass) {
+                if (classAt == -1) {
+                    classAt = alternatives.size();
+                    alternatives.add(alternative);
+                }
+                addCharacters(characters, alternative);
+            }
+            else if (alternative instanceof Epsilon) {
+                empty = true;
+            }
+            else {
+                starred |= alternative instanceof Star;
+                alternatives.add(alternative);
+            }
+        }
+
+        if (characters.size() > 1) {
+            alternatives.set(classAt, new CharClass(characters));
+        }
+
+        // A starred alternative already matches the empty string
+        if (empty && !starred) {
+            alternatives.add(new Epsilon());
+        }
+
+        Regex result = alternatives.get(alternatives.size() - 1);
+        for (int i = alternatives.size() - 2; i >= 0; i--) {
+            result = new Union(alternatives.get(i), result);
+        }
+        return result;
+    }
+
+    /**
+     * @param characters where the characters are added
+     * @param regex a Symbol or CharClass
+     */
+    private static void addCharacters(List<Character> characters, Regex regex) {
+        String letters = regex instanceof Symbol ? ((Symbol) regex).getSymbol() : ((CharClass) regex).getCharacters();
+        for (int i = 0; i < letters.length(); i++) {
+            characters.add(letters.charAt(i));
+        }
+    }
+}
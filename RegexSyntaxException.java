@@ -0,0 +1,43 @@
+/*
+ * The error for a regular expression that cannot be parsed
+ */
+
+
+package graphex;
+
+
+/**
+ * Thrown by RegexParser when a regular expression is not valid
+ */
+public class RegexSyntaxException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1L;
+
+    private final String regex;
+    private final int index;
+
+    /**
+     * Constructor for RegexSyntaxException
+     * @param description what is wrong
+     * @param regex the regular expression
+     * @param index where in the regular expression it went wrong
+     */
+    public RegexSyntaxException(String description, String regex, int index) {
+        super(description + " at index " + index + " of " + regex);
+        this.regex = regex;
+        this.index = index;
+    }
+
+    /**
+     * @return the regular expression
+     */
+    public String getRegex() {
+        return this.regex;
+    }
+
+    /**
+     * @return where in the regular expression it went wrong
+     */
+    public int getIndex() {
+        return this.index;
+    }
+}
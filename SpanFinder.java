@@ -0,0 +1,264 @@
+/*
+ * Find where matches start and end inside a line
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.util.Arrays;
+
+
+/**
+ * Finds the exact span of matches anywhere in the text with two DFAs
+ * The DFA of the reversed regular expression, made unanchored, is run
+ * backwards over the text once to mark every position where a match starts.
+ * The first mark from where the search starts is the leftmost start, and the
+ * forward DFA is run from it to find the longest match, so matches are
+ * leftmost-longest. The marks are kept in a Starts and used again by the next
+ * find over the same text, there is no backtracking
+ */
+final class SpanFinder {
+    private final CompiledPattern forward;
+    private final CompiledPattern unanchored;
+
+    /**
+     * Constructor for SpanFinder
+     * @param forward the pattern of the regular expression
+     * @param reverse the pattern of the reversed regular expression
+     */
+    public SpanFinder(CompiledPattern forward, CompiledPattern reverse) {
+        this.forward = forward;
+        this.unanchored = reverse.unanchored();
+    }
+
+    /**
+     * The positions where a match starts in one text, marked once by a
+     * backwards pass and then read by every find over that text. Each
+     * thread or matcher keeps its own, it is reused without allocating
+     * once it is large enough
+     */
+    static final class Starts {
+        private long[] marks = new long[1];
+        private CharSequence text = null;
+        private int from;
+        private int to;
+
+        /**
+         * Forgets the text, the next find marks its text again
+         */
+        void clear() {
+            this.text = null;
+        }
+
+        /**
+         * @param from a position in the text
+         * @return the first marked position from there, or -1 if there is none
+         */
+        int next(int from) {
+            int last = this.to - this.from;
+            int i = from - this.from;
+            if (i > last) {
+                return -1;
+            }
+
+            int w = i >>> 6;
+            long word = this.marks[w] & (-1L << i);
+            while (word == 0) {
+                if (++w > last >>> 6) {
+                    return -1;
+                }
+                word = this.marks[w];
+            }
+
+            int bit = (w << 6) + Long.numberOfTrailingZeros(word);
+            return bit <= last ? this.from + bit : -1;
+        }
+    }
+
+    /**
+     * Builds the forward and reverse DFAs of a regular expression
+     * @param regex the regular expression
+     * @return the finder
+     */
+    public static SpanFinder compile(Regex regex) {
+        return new SpanFinder(toPattern(regex), toPattern(regex.reverse()));
+    }
+
+    /**
+     * @param regex a regular expression
+     * @return the compiled DFA of the regular expression
+     */
+    private static CompiledPattern toPattern(Regex regex) {
+        long start = GraphexStats.start();
+        StateNumber states = new StateNumber();
+        NFA nfa = regex.createNFA(states);
+        GraphexStats.nfaBuilt(start, states.getStateCount());
+
+        return nfa.nfaToDFA().compile();
+    }
+
+    /**
+     * @return the pattern used to match forwards from a start
+     */
+    public CompiledPattern getForward() {
+        return this.forward;
+    }
+
+    /**
+     * Finds the next match, the match that starts first and then the
+     * longest match from there
+     * @param starts the marks of the calling thread, they are made again if they are for another text
+     * @param text the text to search
+     * @param from where the search starts
+     * @param to one past the last character searched
+     * @return the span of the match as from span(), or -1 if there is none
+     */
+    public long find(Starts starts, CharSequence text, int from, int to) {
+        if (starts.text != text || starts.to != to || from < starts.from) {
+            mark(starts, text, from, to);
+        }
+
+        int start = starts.next(from);
+        if (start == -1) {
+            return -1;
+        }
+
+        // Go forwards from the start to find the longest match, one is known to start there
+        CompiledPattern p = this.forward;
+        int state = p.getStart();
+        int end = start;
+
+        for (int i = start; i < to && state != CompiledPattern.DEAD_STATE; i++) {
+            state = p.next(state, text.charAt(i));
+            if (p.isAccepting(state)) {
+                end = i + 1;
+            }
+        }
+
+        return span(start, end);
+    }
+
+    /**
+     * Marks every position where a match starts by running the unanchored
+     * reverse DFA backwards from the end. It accepts after reading a
+     * character when a match starts at that character and ends anywhere
+     * before the end, so the marks do not depend on where a search starts
+     * @param starts where the marks are kept
+     * @param text the text
+     * @param from the first position marked
+     * @param to one past the last character
+     */
+    private void mark(Starts starts, CharSequence text, int from, int to) {
+        int words = ((to - from) >>> 6) + 1;
+        if (starts.marks.length < words) {
+            starts.marks = new long[Math.max(words, starts.marks.length * 2)];
+        }
+        else {
+            Arrays.fill(starts.marks, 0, words, 0);
+        }
+        starts.text = text;
+        starts.from = from;
+        starts.to = to;
+
+        long[] marks = starts.marks;
+        CompiledPattern p = this.unanchored;
+        int state = p.getStart();
+        if (p.isAccepting(state)) {
+            marks[(to - from) >>> 6] |= 1L << (to - from);
+        }
+
+        // The unanchored pattern never reaches the dead state since its start is always added back
+        for (int i = to - 1; i >= from; i--) {
+            state = p.next(state, text.charAt(i));
+            if (p.isAccepting(state)) {
+                marks[(i - from) >>> 6] |= 1L << (i - from);
+            }
+        }
+    }
+
+    /**
+     * @param start the first character of a match
+     * @param end one past the last character of a match
+     * @return both in one long
+     */
+    public static long span(int start, int end) {
+        return ((long) start << 32) | end;
+    }
+
+    /**
+     * @param span a span from find
+     * @return the first character of the match
+     */
+    public static int start(long span) {
+        return (int) (span >>> 32);
+    }
+
+    /**
+     * @param span a span from find
+     * @return one past the last character of the match
+     */
+    public static int end(long span) {
+        return (int) span;
+    }
+
+    /**
+     * Prints every match in one line, matches do not overlap
+     * @param line the line
+     * @param from where the search starts, no match can start before it
+     * @param lineNumber the number of the line from 1
+     * @param out where the matches are printed
+     * @param prefix printed before every match, such as the file name
+     * @return the number of matches printed
+     */
+    public int searchLine(String line, int from, long lineNumber, PrintStream out, String prefix) {
+        Starts starts = new Starts();
+        int matchCount = 0;
+
+        while (from <= line.length()) {
+            long span = find(starts, line, from, line.length());
+            if (span == -1) {
+                break;
+            }
+
+            int matchStart = start(span);
+            int matchEnd = end(span);
+
+            // Empty matches are not printed, the search just moves past them
+            if (matchEnd > matchStart) {
+                out.println(prefix + "String found " + line.substring(matchStart, matchEnd)
+                        + " at " + lineNumber + ":" + matchStart + "-" + matchEnd);
+                matchCount++;
+                from = matchEnd;
+            }
+            else {
+                from = matchEnd + 1;
+            }
+        }
+
+        return matchCount;
+    }
+
+    /**
+     * Prints every match in every line from a reader, matches do not overlap
+     * @param reader the lines to be processed
+     * @param out where the matches are printed
+     * @param prefix printed before every match, such as the file name
+     * @throws IOException if the reader fails
+     */
+    public void performSearch(BufferedReader reader, PrintStream out, String prefix) throws IOException {
+        long start = GraphexStats.start();
+        long bytes = 0;
+        long lines = 0;
+        long matchCount = 0;
+        String currentLine;
+
+        while ((currentLine = reader.readLine()) != null) {
+            bytes += currentLine.length() + 1;
+            lines++;
+            matchCount += searchLine(currentLine, 0, lines, out, prefix);
+        }
+
+        GraphexStats.scanned(start, bytes, lines, matchCount);
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Limit how large a DFA can grow while it is built
+ */
+
+
+package graphex;
+
+
+/**
+ * The most a NFA can be allowed to grow into while it is turned into a DFA
+ * Some regular expressions, such as (a|b)*a(a|b)(a|b)... , need a number
+ * of DFA states that doubles with every part. Both the number of DFA states
+ * and the memory they take are limited. The memory is estimated from the
+ * DFA states found, the NFA states each of them holds and the transitions
+ * made between them, which is what the subset construction keeps until the
+ * DFA is numbered. The same budget holds for the unanchored pattern used to
+ * find matches. A pattern over the budget is matched by simulating its NFA
+ * instead
+ */
+final class StateBudget {
+    /** The estimated bytes each NFA state in a DFA state costs, a hash set entry and its Integer */
+    private static final long ENTRY_BYTES = 64;
+
+    /** The estimated bytes each DFA transition costs, while it is built and in the numbered DFA */
+    private static final long TRANSITION_BYTES = 160;
+
+    /** The estimated bytes each DFA state costs apart from its NFA states */
+    private static final long STATE_BYTES = 256;
+
+    private static int maxStates = Integer.getInteger("graphex.dfa.maxStates", 250000);
+    private static long maxBytes = Long.getLong("graphex.dfa.maxMegabytes", 512L) << 20;
+
+    /**
+     * Constructor for StateBudget, it only has static members
+     */
+    private StateBudget() {
+    }
+
+    /**
+     * @param states the most DFA states a pattern can have
+     */
+    public static void setMaxStates(int states) {
+        maxStates = Math.max(1, states);
+    }
+
+    /**
+     * @return the most DFA states a pattern can have
+     */
+    public static int getMaxStates() {
+        return maxStates;
+    }
+
+    /**
+     * @param bytes the most memory building one DFA can take, estimated
+     */
+    public static void setMaxBytes(long bytes) {
+        maxBytes = Math.max(1, bytes);
+    }
+
+    /**
+     * Checks the DFA being built is still inside the budget, when only the
+     * sets of NFA states are kept
+     * @param states the DFA states found so far
+     * @param entries the NFA states held by all of them
+     * @throws StateBudgetException if it is over the budget
+     */
+    public static void check(long states, long entries) {
+        check(states, entries, 0);
+    }
+
+    /**
+     * Checks the DFA being built is still inside the budget
+     * @param states the DFA states found so far, including the ones not yet processed
+     * @param entries the NFA states held by all of them
+     * @param transitions the transitions made so far
+     * @throws StateBudgetException if it is over the budget
+     */
+    public static void check(long states, long entries, long transitions) {
+        if (states > maxStates) {
+            throw new StateBudgetException("more than " + maxStates + " DFA states");
+        }
+        if (states * STATE_BYTES + entries * ENTRY_BYTES + transitions * TRANSITION_BYTES > maxBytes) {
+            throw new StateBudgetException("more than " + (maxBytes >> 20) + " MB to determinize");
+        }
+    }
+}
+
@@ -0,0 +1,22 @@
+/*
+ * Thrown when a DFA would be too large
+ */
+
+
+package graphex;
+
+
+/**
+ * Thrown when turning a NFA into a DFA would go over the StateBudget
+ */
+class StateBudgetException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Constructor for StateBudgetException
+     * @param reason what the pattern needs
+     */
+    public StateBudgetException(String reason) {
+        super("Pattern needs " + reason);
+    }
+}
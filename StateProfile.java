@@ -0,0 +1,217 @@
+/*
+ * Count how often the states of a DFA are used on a sample input
+ */
+
+
+package graphex;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+
+/**
+ * How often each state and each transition of a DFA was used when matching
+ * the lines of a sample input. The states can then be numbered so the ones
+ * used most, followed by the states they most often go to, are next to each
+ * other in the transition table. A profile only fits the DFA it was recorded
+ * on, so it is saved with a fingerprint of the DFA and is not used for any
+ * other. DFAs are numbered breadth first when there is no profile
+ */
+final class StateProfile {
+    private final String fingerprint;
+    private final Map<Integer, Long> visits = new HashMap<Integer, Long>();
+    private final Map<Integer, Map<Integer, Long>> edges = new HashMap<Integer, Map<Integer, Long>>();
+
+    /**
+     * Constructor for StateProfile
+     * @param fingerprint the fingerprint of the DFA the counts are for
+     */
+    private StateProfile(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Matches every line of a sample against a DFA from its start state, like
+     * DFA.performRegex, counting every state and transition used
+     * @param dfa the DFA, it is only read
+     * @param reader the sample
+     * @return the profile
+     * @throws IOException if the reader fails
+     */
+    public static StateProfile record(DFA dfa, BufferedReader reader) throws IOException {
+        StateProfile profile = new StateProfile(fingerprint(dfa));
+        Map<Integer, Map<String, Integer>> delta = dfa.getDeltaTranstions();
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            int state = dfa.getStart();
+            profile.visits.merge(state, 1L, Long::sum);
+
+            for (int i = 0; i < line.length(); i++) {
+                Map<String, Integer> stateTransitions = delta.get(state);
+                Integer target = stateTransitions == null ? null : stateTransitions.get(String.valueOf(line.charAt(i)));
+                if (target == null) {
+                    break;
+                }
+
+                profile.visits.merge(target, 1L, Long::sum);
+                profile.edges.computeIfAbsent(state, k -> new HashMap<Integer, Long>()).merge(target, 1L, Long::sum);
+                state = target;
+            }
+        }
+
+        return profile;
+    }
+
+    /**
+     * Gets a fingerprint of the states and transitions of a DFA, two DFAs
+     * with the same fingerprint are numbered the same way
+     * @param dfa the DFA
+     * @return the fingerprint
+     */
+    public static String fingerprint(DFA dfa) {
+        Map<Integer, Map<String, Integer>> delta = dfa.getDeltaTranstions();
+        long hash = dfa.getStart();
+
+        for (int state : new TreeSet<Integer>(delta.keySet())) {
+            hash = hash * 31 + state;
+            for (Map.Entry<String, Integer> t : new TreeMap<String, Integer>(delta.get(state)).entrySet()) {
+                if (t.getValue() != null) {
+                    hash = hash * 31 + t.getKey().hashCode();
+                    hash = hash * 31 + t.getValue();
+                }
+            }
+        }
+        for (int state : new TreeSet<Integer>(dfa.getAcceptStates())) {
+            hash = hash * 31 + state;
+        }
+
+        return delta.size() + "-" + Long.toHexString(hash);
+    }
+
+    /**
+     * @param dfa a DFA
+     * @return true if the profile was recorded on this DFA
+     */
+    public boolean fits(DFA dfa) {
+        return this.fingerprint.equals(fingerprint(dfa));
+    }
+
+    /**
+     * Orders the states that were used, the most used state not placed yet
+     * starts a chain that then follows the transition used most to a state
+     * not placed yet, until there is none
+     * @return the states in their new order, states never used are left out
+     */
+    public List<Integer> order() {
+        List<Integer> hottest = new ArrayList<Integer>(this.visits.keySet());
+        hottest.sort((a, b) -> {
+            int byCount = Long.compare(this.visits.get(b), this.visits.get(a));
+            return byCount != 0 ? byCount : Integer.compare(a, b);
+        });
+
+        List<Integer> order = new ArrayList<Integer>();
+        Set<Integer> placed = new HashSet<Integer>();
+
+        for (int first : hottest) {
+            Integer state = first;
+            while (state != null && placed.add(state)) {
+                order.add(state);
+
+                // Follow the most used transition to a state that has no place yet
+                Integer next = null;
+                long count = 0;
+                for (Map.Entry<Integer, Long> t : this.edges.getOrDefault(state, Collections.<Integer, Long>emptyMap()).entrySet()) {
+                    if (!placed.contains(t.getKey()) && (t.getValue() > count
+                            || (t.getValue() == count && t.getKey() < next))) {
+                        next = t.getKey();
+                        count = t.getValue();
+                    }
+                }
+                state = next;
+            }
+        }
+
+        return order;
+    }
+
+    /**
+     * Numbers a DFA with this profile
+     * @param dfa the DFA the profile was recorded on
+     * @return the renumbered DFA
+     */
+    public DFA apply(DFA dfa) {
+        return dfa.renumber(order());
+    }
+
+    /**
+     * Loads a profile written by save
+     * @param file the file
+     * @return the profile
+     * @throws IOException if the file cannot be read
+     */
+    public static StateProfile load(Path file) throws IOException {
+        Properties saved = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            saved.load(reader);
+        }
+
+        StateProfile profile = new StateProfile(saved.getProperty("fingerprint", ""));
+        try {
+            for (String name : saved.stringPropertyNames()) {
+                String[] parts = name.split("\\.");
+                if (parts[0].equals("visits") && parts.length == 2) {
+                    profile.visits.put(Integer.parseInt(parts[1]), count(saved.getProperty(name)));
+                }
+                else if (parts[0].equals("edge") && parts.length == 3) {
+                    profile.edges.computeIfAbsent(Integer.parseInt(parts[1]), k -> new HashMap<Integer, Long>())
+                            .put(Integer.parseInt(parts[2]), count(saved.getProperty(name)));
+                }
+            }
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("Profile is not in the right format: " + file, e);
+        }
+
+        return profile;
+    }
+
+    /**
+     * @param value a count from a saved profile
+     * @return the count, only states and transitions that were used are saved
+     * @throws NumberFormatException if it is not a number above 0
+     */
+    private static long count(String value) {
+        long count = Long.parseLong(value);
+        if (count <= 0) {
+            throw new NumberFormatException("Count is not above 0: " + value);
+        }
+        return count;
+    }
+
+    /**
+     * Saves the profile, it is written to a new file that then replaces the old one
+     * @param file the file
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        Properties saved = new Properties();
+        saved.setProperty("fingerprint", this.fingerprint);
+        for (Map.Entry<Integer, Long> visit : this.visits.entrySet()) {
+            saved.setProperty("visits." + visit.getKey(), "" + visit.getValue());
+        }
+        for (Map.Entry<Integer, Map<Integer, Long>> from : this.edges.entrySet()) {
+            for (Map.Entry<Integer, Long> t : from.getValue().entrySet()) {
+                saved.setProperty("edge." + from.getKey() + "." + t.getKey(), "" + t.getValue());
+            }
+        }
+
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            saved.store(writer, "graphex state profile");
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
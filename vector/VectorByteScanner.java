@@ -0,0 +1,155 @@
+/*
+ * Find line ends and interesting bytes with the Vector API
+ */
+
+
+package graphex;
+
+import jdk.incubator.vector.*;
+
+
+/**
+ * Looks at a whole vector of bytes at a time, 32 or 64 depending on the CPU
+ * This needs the incubator module so it is built on its own:
+ *     javac --add-modules jdk.incubator.vector -cp out -d out vector/*.java
+ * and is only used if the JVM is started with --add-modules jdk.incubator.vector
+ */
+final class VectorByteScanner implements ByteScanner {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final int LENGTH = SPECIES.length();
+
+    /** Sets with this many bytes or fewer are compared a byte at a time */
+    private static final int COMPARE_LIMIT = 3;
+
+    /**
+     * The vectors for a set, they are kept on the set itself
+     */
+    private static final class Prepared {
+        final byte[] values;
+        final ByteVector low;
+        final ByteVector high;
+
+        Prepared(ByteSet set) {
+            this.values = set.values();
+            this.low = ByteVector.fromArray(SPECIES, repeat(set.lowTable()), 0);
+            this.high = ByteVector.fromArray(SPECIES, repeat(set.highTable()), 0);
+        }
+    }
+
+    /**
+     * Constructor for VectorByteScanner
+     * @throws UnsupportedOperationException if the vectors are too small for the tables
+     */
+    public VectorByteScanner() {
+        if (LENGTH < 16) {
+            throw new UnsupportedOperationException("Vectors of " + LENGTH + " bytes are too small");
+        }
+    }
+
+    @Override
+    public int lineEnd(byte[] bytes, int from, int to) {
+        int i = from;
+        for (; i + LENGTH <= to; i += LENGTH) {
+            ByteVector v = ByteVector.fromArray(SPECIES, bytes, i);
+            VectorMask<Byte> ends = v.eq((byte) '\n').or(v.eq((byte) '\r'));
+            if (ends.anyTrue()) {
+                return i + ends.firstTrue();
+            }
+        }
+
+        for (; i < to; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int indexOfAny(byte[] bytes, int from, int to, ByteSet set) {
+        Prepared p = (Prepared) set.getPrepared();
+        if (p == null) {
+            p = new Prepared(set);
+            set.setPrepared(p);
+        }
+
+        int i = from;
+        if (p.values.length == 0) {
+            return -1;
+        }
+
+        for (; i + LENGTH <= to; i += LENGTH) {
+            ByteVector v = ByteVector.fromArray(SPECIES, bytes, i);
+            VectorMask<Byte> found;
+
+            if (p.values.length <= COMPARE_LIMIT) {
+                found = v.eq(p.values[0]);
+                for (int k = 1; k < p.values.length; k++) {
+                    found = found.or(v.eq(p.values[k]));
+                }
+                if (found.anyTrue()) {
+                    return i + found.firstTrue();
+                }
+                continue;
+            }
+
+            // Look up the low and high four bits, a lane can only be in the set if they share a bucket
+            ByteVector low = v.and((byte) 0x0f);
+            ByteVector high = v.lanewise(VectorOperators.LSHR, 4).and((byte) 0x0f);
+            ByteVector buckets = p.low.rearrange(low.toShuffle()).and(p.high.rearrange(high.toShuffle()));
+            found = buckets.compare(VectorOperators.NE, (byte) 0);
+
+            // Buckets are shared so check each candidate
+            long lanes = found.toLong();
+            while (lanes != 0) {
+                int lane = Long.numberOfTrailingZeros(lanes);
+                if (set.contains(bytes[i + lane])) {
+                    return i + lane;
+                }
+                lanes &= lanes - 1;
+            }
+        }
+
+        for (; i < to; i++) {
+            if (set.contains(bytes[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int nonAscii(byte[] bytes, int from, int to) {
+        int i = from;
+        for (; i + LENGTH <= to; i += LENGTH) {
+            VectorMask<Byte> high = ByteVector.fromArray(SPECIES, bytes, i).lt((byte) 0);
+            if (high.anyTrue()) {
+                return i + high.firstTrue();
+            }
+        }
+
+        for (; i < to; i++) {
+            if (bytes[i] < 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param table a table of 16 entries
+     * @return the table repeated to fill a vector
+     */
+    private static byte[] repeat(byte[] table) {
+        byte[] lanes = new byte[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            lanes[i] = table[i & 0x0f];
+        }
+        return lanes;
+    }
+
+    @Override
+    public String toString() {
+        return "vector " + LENGTH * 8 + " bit";
+    }
+}